@@ -0,0 +1,101 @@
+package com.streetwriters.notesnook;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.TimeZone;
+
+/**
+ * How long {@link RecurrenceEngine} takes to work out the next occurrences of 10,000 repeating
+ * reminders, spread over every rule, which is well past what a widget redraw or an agenda ever
+ * asks of it.
+ *
+ * Skipped unless asked for, so it stays out of the Detox runs:
+ * <pre>
+ *   adb shell am instrument -w -e benchmark true \
+ *     -e class com.streetwriters.notesnook.RecurrenceBenchmark \
+ *     com.streetwriters.notesnook.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ * Results are logged under the RecurrenceBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecurrenceBenchmark {
+    private static final String TAG = "RecurrenceBenchmark";
+    private static final int REMINDERS = 10000;
+    private static final int ROUNDS = 5;
+    private static final int OCCURRENCES = 10;
+
+    private static final String[] MODES = {"day", "week", "month", "year"};
+
+    private final RecurrenceEngine.Rule[] rules = new RecurrenceEngine.Rule[REMINDERS];
+    private RecurrenceEngine engine;
+    private long now;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString("benchmark")));
+
+        engine = new RecurrenceEngine(TimeZone.getDefault());
+        now = System.currentTimeMillis();
+        for (int i = 0; i < REMINDERS; i++) {
+            Reminder reminder = new Reminder();
+            reminder.setMode("repeat");
+            reminder.setRecurringMode(MODES[i % MODES.length]);
+            reminder.setDate(1712496832000L + i * 7 * 60 * 1000L);
+            if (i % 4 == 1) reminder.setSelectedDays(new int[]{i % 7, (i + 3) % 7});
+            if (i % 4 == 2) reminder.setSelectedDays(new int[]{1 + i % 31, 1 + (i + 10) % 31});
+            rules[i] = RecurrenceEngine.Rule.of(reminder);
+        }
+    }
+
+    @Test
+    public void nextOccurrence() {
+        report("next occurrence", () -> {
+            int found = 0;
+            for (RecurrenceEngine.Rule rule : rules) {
+                if (engine.next(rule, now) != Long.MAX_VALUE) found++;
+            }
+            return found;
+        });
+    }
+
+    @Test
+    public void nextOccurrences() {
+        long[] out = new long[OCCURRENCES];
+        report("next " + OCCURRENCES + " occurrences", () -> {
+            int found = 0;
+            for (RecurrenceEngine.Rule rule : rules) {
+                if (engine.next(rule, now, out) == OCCURRENCES) found++;
+            }
+            return found;
+        });
+    }
+
+    private interface Run {
+        int run();
+    }
+
+    private static void report(String label, Run run) {
+        // Warm up.
+        run.run();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ROUNDS; i++) {
+            Assert.assertEquals(REMINDERS, run.run());
+        }
+        long nanos = (SystemClock.elapsedRealtimeNanos() - start) / ROUNDS;
+        Log.i(TAG, label + ": " + nanos / 1000 + " us per " + REMINDERS + " reminders, "
+                + nanos / REMINDERS + " ns each");
+    }
+}
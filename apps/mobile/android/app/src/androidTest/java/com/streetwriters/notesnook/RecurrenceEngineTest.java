@@ -0,0 +1,215 @@
+package com.streetwriters.notesnook;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Occurrences of repeating reminders, in a timezone with DST (America/New_York, which moved its
+ * clocks on 8 March and 1 November 2026) so the changeovers are covered, and around the ends of
+ * months and February in leap years.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecurrenceEngineTest {
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private RecurrenceEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new RecurrenceEngine(NEW_YORK);
+    }
+
+    @Test
+    public void dailyKeepsWallClockTimeAcrossSpringForward() {
+        RecurrenceEngine.Rule rule = rule("day", at(2026, 1, 1, 9, 0));
+        long[] out = new long[3];
+        Assert.assertEquals(3, engine.next(rule, at(2026, 3, 7, 10, 0), out));
+        Assert.assertEquals(at(2026, 3, 8, 9, 0), out[0]);
+        Assert.assertEquals(at(2026, 3, 9, 9, 0), out[1]);
+        Assert.assertEquals(at(2026, 3, 10, 9, 0), out[2]);
+        // The day the clocks go forward is an hour short.
+        Assert.assertEquals(23 * HOUR, out[0] - at(2026, 3, 7, 9, 0));
+    }
+
+    @Test
+    public void dailyTimeSkippedBySpringForwardMovesWithTheClocks() {
+        RecurrenceEngine.Rule rule = rule("day", at(2026, 1, 1, 2, 30));
+        long[] out = new long[2];
+        Assert.assertEquals(2, engine.next(rule, at(2026, 3, 8, 0, 0), out));
+        // 2:30 does not exist that night; it is 3:30 once the clocks have moved.
+        Assert.assertEquals(at(2026, 3, 8, 3, 30), out[0]);
+        Assert.assertEquals(at(2026, 3, 9, 2, 30), out[1]);
+    }
+
+    @Test
+    public void dailyTimeRepeatedByFallBackOnlyCountsOnce() {
+        RecurrenceEngine.Rule rule = rule("day", at(2026, 1, 1, 1, 30));
+        long first = at(2026, 11, 1, 1, 30);
+        Assert.assertEquals(first, engine.next(rule, at(2026, 10, 31, 12, 0)));
+        // The other 1:30, an hour before or after, is not another occurrence.
+        Assert.assertEquals(first, engine.next(rule, first - HOUR));
+        Assert.assertEquals(at(2026, 11, 2, 1, 30), engine.next(rule, first));
+        Assert.assertEquals(at(2026, 11, 2, 1, 30), engine.next(rule, first + HOUR));
+    }
+
+    @Test
+    public void dailyAtExactlyTheTimeMovesToTheNextDay() {
+        RecurrenceEngine.Rule rule = rule("day", at(2026, 1, 1, 9, 0));
+        Assert.assertEquals(at(2026, 6, 2, 9, 0), engine.next(rule, at(2026, 6, 1, 9, 0)));
+        Assert.assertEquals(at(2026, 6, 1, 9, 0), engine.next(rule, at(2026, 6, 1, 8, 59)));
+    }
+
+    @Test
+    public void weeklyOnSelectedDaysWrapsIntoNextWeek() {
+        // Monday, Wednesday and Friday.
+        RecurrenceEngine.Rule rule = rule("week", at(2026, 1, 1, 18, 0), 1, 3, 5);
+        long[] out = new long[4];
+        // Friday 15 May 2026, after the reminder has gone off.
+        Assert.assertEquals(4, engine.next(rule, at(2026, 5, 15, 19, 0), out));
+        Assert.assertEquals(at(2026, 5, 18, 18, 0), out[0]);
+        Assert.assertEquals(at(2026, 5, 20, 18, 0), out[1]);
+        Assert.assertEquals(at(2026, 5, 22, 18, 0), out[2]);
+        Assert.assertEquals(at(2026, 5, 25, 18, 0), out[3]);
+    }
+
+    @Test
+    public void weeklyAcrossFallBack() {
+        // Sundays, the day the clocks go back.
+        RecurrenceEngine.Rule rule = rule("week", at(2026, 1, 1, 9, 0), 0);
+        long[] out = new long[2];
+        Assert.assertEquals(2, engine.next(rule, at(2026, 10, 26, 0, 0), out));
+        Assert.assertEquals(at(2026, 11, 1, 9, 0), out[0]);
+        Assert.assertEquals(at(2026, 11, 8, 9, 0), out[1]);
+        Assert.assertEquals(7 * 24 * HOUR, out[1] - out[0]);
+        Assert.assertEquals(7 * 24 * HOUR + HOUR, out[0] - at(2026, 10, 25, 9, 0));
+    }
+
+    @Test
+    public void weeklyWithoutSelectedDaysIsTodayLikeTheApp() {
+        // getUpcomingReminderTime in @notesnook/core: today at the time, gone by or not.
+        RecurrenceEngine.Rule rule = rule("week", at(2026, 1, 1, 9, 0));
+        Assert.assertEquals(at(2026, 5, 15, 9, 0), engine.next(rule, at(2026, 5, 15, 8, 0)));
+        Assert.assertEquals(at(2026, 5, 15, 9, 0), engine.next(rule, at(2026, 5, 15, 12, 0)));
+
+        long[] out = new long[3];
+        Assert.assertEquals(1, engine.next(rule, at(2026, 5, 15, 8, 0), out));
+        Assert.assertEquals(at(2026, 5, 15, 9, 0), out[0]);
+        Assert.assertEquals(0, engine.next(rule, at(2026, 5, 15, 12, 0), out));
+    }
+
+    @Test
+    public void monthlyOnThe31stSkipsShortMonths() {
+        RecurrenceEngine.Rule rule = rule("month", at(2026, 1, 1, 8, 0), 31);
+        long[] out = new long[4];
+        Assert.assertEquals(4, engine.next(rule, at(2026, 1, 31, 9, 0), out));
+        Assert.assertEquals(at(2026, 3, 31, 8, 0), out[0]);
+        Assert.assertEquals(at(2026, 5, 31, 8, 0), out[1]);
+        Assert.assertEquals(at(2026, 7, 31, 8, 0), out[2]);
+        Assert.assertEquals(at(2026, 8, 31, 8, 0), out[3]);
+    }
+
+    @Test
+    public void monthlyAtTheEndOfFebruary() {
+        RecurrenceEngine.Rule rule = rule("month", at(2026, 1, 1, 8, 0), 28, 29, 30);
+        long[] out = new long[3];
+        Assert.assertEquals(3, engine.next(rule, at(2026, 2, 1, 0, 0), out));
+        Assert.assertEquals(at(2026, 2, 28, 8, 0), out[0]);
+        Assert.assertEquals(at(2026, 3, 28, 8, 0), out[1]);
+        Assert.assertEquals(at(2026, 3, 29, 8, 0), out[2]);
+
+        // 2028 is a leap year.
+        Assert.assertEquals(3, engine.next(rule, at(2028, 2, 28, 9, 0), out));
+        Assert.assertEquals(at(2028, 2, 29, 8, 0), out[0]);
+        Assert.assertEquals(at(2028, 3, 28, 8, 0), out[1]);
+        Assert.assertEquals(at(2028, 3, 29, 8, 0), out[2]);
+    }
+
+    @Test
+    public void monthlyCrossesTheYear() {
+        RecurrenceEngine.Rule rule = rule("month", at(2026, 1, 1, 8, 0), 1, 15);
+        long[] out = new long[3];
+        Assert.assertEquals(3, engine.next(rule, at(2026, 12, 20, 0, 0), out));
+        Assert.assertEquals(at(2027, 1, 1, 8, 0), out[0]);
+        Assert.assertEquals(at(2027, 1, 15, 8, 0), out[1]);
+        Assert.assertEquals(at(2027, 2, 1, 8, 0), out[2]);
+    }
+
+    @Test
+    public void monthlyWithoutSelectedDaysIsTodayLikeTheApp() {
+        RecurrenceEngine.Rule rule = rule("month", at(2026, 1, 12, 8, 0));
+        Assert.assertEquals(at(2026, 5, 20, 8, 0), engine.next(rule, at(2026, 5, 20, 7, 0)));
+        Assert.assertEquals(at(2026, 5, 20, 8, 0), engine.next(rule, at(2026, 5, 20, 8, 0)));
+    }
+
+    @Test
+    public void yearlyOnFebruary29thOnlyInLeapYears() {
+        RecurrenceEngine.Rule rule = rule("year", at(2024, 2, 29, 7, 0));
+        long[] out = new long[2];
+        Assert.assertEquals(2, engine.next(rule, at(2024, 2, 29, 7, 0), out));
+        Assert.assertEquals(at(2028, 2, 29, 7, 0), out[0]);
+        Assert.assertEquals(at(2032, 2, 29, 7, 0), out[1]);
+    }
+
+    @Test
+    public void yearlyLaterThisYearOrNext() {
+        RecurrenceEngine.Rule rule = rule("year", at(2020, 11, 1, 1, 30));
+        Assert.assertEquals(at(2026, 11, 1, 1, 30), engine.next(rule, at(2026, 6, 1, 0, 0)));
+        Assert.assertEquals(at(2027, 11, 1, 1, 30), engine.next(rule, at(2026, 11, 1, 1, 30)));
+    }
+
+    @Test
+    public void onlyRepeatingRemindersHaveRules() {
+        Reminder reminder = reminder("day", at(2026, 1, 1, 9, 0));
+        reminder.setMode("once");
+        Assert.assertNull(RecurrenceEngine.Rule.of(reminder));
+        reminder.setMode("permanent");
+        Assert.assertNull(RecurrenceEngine.Rule.of(reminder));
+        reminder.setMode("repeat");
+        reminder.setRecurringMode(null);
+        Assert.assertNull(RecurrenceEngine.Rule.of(reminder));
+    }
+
+    @Test
+    public void rulesSurviveEncoding() {
+        RecurrenceEngine.Rule rule = rule("month", at(2026, 1, 1, 8, 0), 1, 15, 31);
+        RecurrenceEngine.Rule decoded = RecurrenceEngine.Rule.decode(rule.encode());
+        Assert.assertNotNull(decoded);
+        long after = at(2026, 4, 1, 9, 0);
+        Assert.assertEquals(engine.next(rule, after), engine.next(decoded, after));
+        Assert.assertNull(RecurrenceEngine.Rule.decode("fortnight/0/0"));
+        Assert.assertNull(RecurrenceEngine.Rule.decode("day/x/0"));
+    }
+
+    private static RecurrenceEngine.Rule rule(String recurringMode, long date, int... selectedDays) {
+        return RecurrenceEngine.Rule.of(reminder(recurringMode, date, selectedDays));
+    }
+
+    private static Reminder reminder(String recurringMode, long date, int... selectedDays) {
+        Reminder reminder = new Reminder();
+        reminder.setMode("repeat");
+        reminder.setRecurringMode(recurringMode);
+        reminder.setSelectedDays(selectedDays);
+        reminder.setDate(date);
+        return reminder;
+    }
+
+    /**
+     * A local time in New York, with the month counted from 1.
+     */
+    private static long at(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(NEW_YORK);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, 0);
+        return calendar.getTimeInMillis();
+    }
+}
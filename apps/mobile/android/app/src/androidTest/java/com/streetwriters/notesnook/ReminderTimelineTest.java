@@ -0,0 +1,115 @@
+package com.streetwriters.notesnook;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where snoozed repeating reminders sit in the timeline: at the end of the snooze while it lasts,
+ * the same time their row is labelled with, and back on their rule once it is over.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReminderTimelineTest {
+    private static final int LIMIT = 10;
+
+    @Test
+    public void snoozedRepeatingReminderGoesOffWhenTheSnoozeEnds() {
+        ReminderTimeline timeline = new ReminderTimeline();
+        long now = at(1, 9, 1);
+        timeline.put("daily", daily("daily", at(1, 9, 0), at(1, 9, 5)), now);
+        timeline.put("lunch", once("lunch", at(1, 12, 0)), now);
+
+        // Snoozed to 9:05, so ahead of today's 12:00, not after it as tomorrow's 9:00.
+        Assert.assertEquals(Arrays.asList("daily", "lunch"), timeline.getVisible(now, LIMIT));
+    }
+
+    @Test
+    public void snoozedRepeatingReminderReturnsToItsRuleAfterwards() {
+        ReminderTimeline timeline = new ReminderTimeline();
+        timeline.put("daily", daily("daily", at(1, 9, 0), at(1, 9, 5)), at(1, 9, 1));
+        timeline.put("lunch", once("lunch", at(1, 12, 0)), at(1, 9, 1));
+
+        Assert.assertEquals(Arrays.asList("lunch", "daily"), timeline.getVisible(at(1, 9, 6), LIMIT));
+    }
+
+    @Test
+    public void snoozeSurvivesSavingAndRescheduling() {
+        ReminderTimeline timeline = new ReminderTimeline();
+        long now = at(1, 9, 1);
+        timeline.put("daily", daily("daily", at(1, 9, 0), at(1, 9, 5)), now);
+        timeline.put("lunch", once("lunch", at(1, 12, 0)), now);
+
+        Map<String, String> saved = new HashMap<>();
+        for (String id : Arrays.asList("daily", "lunch")) saved.put(id, timeline.encode(id));
+        ReminderTimeline decoded = ReminderTimeline.decode(ReminderTimeline.VERSION, saved);
+        Assert.assertNotNull(decoded);
+        decoded.reschedule(now);
+        Assert.assertEquals(Arrays.asList("daily", "lunch"), decoded.getVisible(now, LIMIT));
+    }
+
+    @Test
+    public void snoozeThatHasEndedIsIgnored() {
+        ReminderTimeline timeline = new ReminderTimeline();
+        long now = at(1, 10, 0);
+        timeline.put("daily", daily("daily", at(1, 9, 0), at(1, 9, 5)), now);
+        timeline.put("lunch", once("lunch", at(1, 12, 0)), now);
+
+        Assert.assertEquals(Arrays.asList("lunch", "daily"), timeline.getVisible(now, LIMIT));
+    }
+
+    @Test
+    public void repeatingRemindersThatAllCameDueKeepTheirOrder() {
+        ReminderTimeline timeline = new ReminderTimeline();
+        long now = at(1, 8, 0);
+        List<String> expected = new ArrayList<>();
+        for (int hour = 20; hour >= 9; hour--) {
+            timeline.put("daily" + hour, daily("daily" + hour, at(1, hour, 0), 0), now);
+            expected.add(0, "daily" + hour);
+        }
+        timeline.put("later", once("later", at(3, 9, 30)), now);
+        expected.add(1, "later");
+
+        // Idle for two days: every repeating reminder is due and moves on to the 3rd, at once.
+        Assert.assertEquals(expected.subList(0, 1), timeline.getVisible(at(3, 8, 0), 1));
+        Assert.assertEquals(expected, timeline.getVisible(at(3, 8, 0), LIMIT + 3));
+    }
+
+    private static Reminder daily(String id, long date, long snoozeUntil) {
+        Reminder reminder = new Reminder();
+        reminder.setId(id);
+        reminder.setMode("repeat");
+        reminder.setRecurringMode("day");
+        reminder.setDate(date);
+        reminder.setSnoozeUntil(snoozeUntil);
+        return reminder;
+    }
+
+    private static Reminder once(String id, long date) {
+        Reminder reminder = new Reminder();
+        reminder.setId(id);
+        reminder.setMode("once");
+        reminder.setDate(date);
+        return reminder;
+    }
+
+    /**
+     * A local time on the given day of June 2030.
+     */
+    private static long at(int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2030, Calendar.JUNE, day, hour, minute, 0);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,124 @@
+package com.streetwriters.notesnook.datatypes;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.List;
+
+/**
+ * Compares the streaming parsers with the reflective Gson path the widgets used before: a new
+ * Gson (and TypeToken) per call, as the widget code did, and a shared Gson for reference.
+ *
+ * Skipped unless asked for, so it stays out of the Detox runs:
+ * <pre>
+ *   adb shell am instrument -w -e benchmark true \
+ *     -e class com.streetwriters.notesnook.datatypes.ParserBenchmark \
+ *     com.streetwriters.notesnook.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ * Results are logged under the ParserBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParserBenchmark {
+    private static final String TAG = "ParserBenchmark";
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+    private static final int REMINDERS = 50;
+
+    private String note;
+    private String reminders;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString("benchmark")));
+
+        StringBuilder headline = new StringBuilder();
+        while (headline.length() < 150) headline.append("Remember to pick up the groceries ");
+        note = "{\"id\":\"6612a0c0f5d2b7a1e4c3b2a1\",\"type\":\"note\",\"title\":\"Shopping\","
+                + "\"headline\":\"" + headline + "\",\"contentId\":\"6612a0c0f5d2b7a1e4c3b2a2\","
+                + "\"locked\":false,\"pinned\":true,\"favorite\":false,\"localOnly\":false,"
+                + "\"conflicted\":false,\"readonly\":false,\"dateCreated\":1712496832000,"
+                + "\"dateModified\":1712496900000,\"dateEdited\":1712496900000,\"dateDeleted\":null,"
+                + "\"itemType\":null,\"deletedBy\":null,\"synced\":true,\"remote\":false,"
+                + "\"isGeneratedTitle\":false,\"sessionId\":\"1712496832000\"}";
+
+        StringBuilder list = new StringBuilder("[");
+        for (int i = 0; i < REMINDERS; i++) {
+            if (i > 0) list.append(',');
+            list.append("{\"id\":\"r").append(i).append("\",\"type\":\"reminder\",")
+                    .append("\"title\":\"Reminder ").append(i).append("\",")
+                    .append("\"description\":\"Call back about the invoice\",")
+                    .append("\"priority\":\"vibrate\",\"date\":").append(1712496832000L + i * 60000L).append(',')
+                    .append("\"triggerDate\":").append(1712496832000L + i * 60000L).append(',')
+                    .append("\"mode\":\"").append(i % 2 == 0 ? "once" : "repeat").append("\",")
+                    .append("\"recurringMode\":\"week\",\"selectedDays\":[1,3,5],")
+                    .append("\"localOnly\":false,\"disabled\":false,\"snoozeUntil\":0,")
+                    .append("\"dateCreated\":1712496832000,\"dateModified\":1712496832000}");
+        }
+        reminders = list.append(']').toString();
+    }
+
+    @Test
+    public void parsersMatchGson() {
+        Note expected = new Gson().fromJson(note, Note.class);
+        Note actual = NoteParser.INSTANCE.parse(note);
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getTitle(), actual.getTitle());
+        Assert.assertEquals(expected.getHeadline(), actual.getHeadline());
+
+        List<Reminder> expectedList = new Gson().fromJson(reminders, new TypeToken<List<Reminder>>() {}.getType());
+        List<Reminder> actualList = ReminderParser.INSTANCE.parseList(reminders);
+        Assert.assertEquals(expectedList.size(), actualList.size());
+        for (int i = 0; i < expectedList.size(); i++) {
+            Assert.assertEquals(expectedList.get(i).getTitle(), actualList.get(i).getTitle());
+            Assert.assertEquals(expectedList.get(i).getTriggerDate(), actualList.get(i).getTriggerDate());
+            Assert.assertEquals(expectedList.get(i).getMode(), actualList.get(i).getMode());
+        }
+    }
+
+    @Test
+    public void note() {
+        Gson shared = new Gson();
+        report("note, new Gson per call", () -> new Gson().fromJson(note, Note.class));
+        report("note, shared Gson", () -> shared.fromJson(note, Note.class));
+        report("note, streaming", () -> NoteParser.INSTANCE.parse(note));
+    }
+
+    @Test
+    public void reminderList() {
+        Gson shared = new Gson();
+        report("reminders, new Gson per call", () ->
+                new Gson().fromJson(reminders, new TypeToken<List<Reminder>>() {}.getType()));
+        report("reminders, shared Gson", () ->
+                shared.fromJson(reminders, new TypeToken<List<Reminder>>() {}.getType()));
+        report("reminders, streaming", () -> ReminderParser.INSTANCE.parseList(reminders));
+    }
+
+    private interface Parse {
+        Object run();
+    }
+
+    private static void report(String label, Parse parse) {
+        for (int i = 0; i < WARMUP; i++) parse.run();
+
+        int results = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (parse.run() != null) results++;
+        }
+        long nanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+        Assert.assertEquals(ITERATIONS, results);
+        Log.i(TAG, label + ": " + nanos + " ns per parse");
+    }
+}
@@ -0,0 +1,229 @@
+package com.streetwriters.notesnook.storage;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Loading a log whose last record was damaged: cut short, failing its checksum, or holding an
+ * operation this version does not know. The records before it must load, the damaged one must
+ * leave nothing behind, and the log must take new writes and load cleanly afterwards. Also
+ * compaction, which must leave the log usable whether or not it gets to replace the file.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogStorageEngineTest {
+    private File directory;
+    private File file;
+    /**
+     * Where the record after the one written by {@link LogStorageEngine#create} starts.
+     */
+    private long secondRecord;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(context.getCacheDir(), "LogStorageEngineTest");
+        tearDown();
+        directory.mkdirs();
+        file = new File(directory, "store.log");
+
+        Map<String, String> values = new HashMap<>();
+        values.put("a", "1");
+        values.put("b", "2");
+        new LogStorageEngine(file).create(values, Collections.emptyMap());
+        secondRecord = file.length();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) return;
+        for (File file : files) file.delete();
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws IOException {
+        byte[] payload = put("c", "3");
+        appendRecord(payload, checksum(payload));
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(secondRecord + 8 + payload.length / 2);
+        }
+
+        assertRecovered();
+    }
+
+    @Test
+    public void recordWithBadChecksumIsDropped() throws IOException {
+        byte[] payload = put("c", "3");
+        appendRecord(payload, checksum(payload) ^ 1);
+
+        assertRecovered();
+    }
+
+    @Test
+    public void recordWithUnknownOperationIsDroppedWhole() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(put("c", "3"));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(9);
+        writeString(out, "d");
+        byte[] payload = bytes.toByteArray();
+        appendRecord(payload, checksum(payload));
+
+        assertRecovered();
+
+        // The whole file was kept aside, once.
+        File copy = new File(file.getPath() + LogStorageEngine.CORRUPT_SUFFIX);
+        Assert.assertTrue(copy.exists());
+        Assert.assertTrue(copy.delete());
+        load(new LogStorageEngine(file));
+        Assert.assertFalse(copy.exists());
+    }
+
+    @Test
+    public void fileThatIsNotALogStartsEmpty() throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.writeInt(0x12345678);
+        }
+
+        LogStorageEngine engine = new LogStorageEngine(file);
+        Assert.assertTrue(load(engine).isEmpty());
+        engine.write(Collections.singletonMap("e", "5"), Collections.emptyMap(), Collections.emptySet());
+        engine.close();
+
+        Assert.assertEquals(Collections.singletonMap("e", "5"), load(new LogStorageEngine(file)));
+        Assert.assertTrue(new File(file.getPath() + LogStorageEngine.CORRUPT_SUFFIX).exists());
+    }
+
+    @Test
+    public void compactionKeepsTheLiveValues() throws IOException {
+        LogStorageEngine engine = new LogStorageEngine(file);
+        Map<String, String> expected = load(engine);
+        fillWithStaleValues(engine, expected);
+        long before = file.length();
+
+        engine.compact();
+        Assert.assertTrue(file.length() < before);
+        engine.write(Collections.singletonMap("e", "5"), Collections.emptyMap(), Collections.emptySet());
+        engine.close();
+
+        expected.put("e", "5");
+        Assert.assertEquals(expected, load(new LogStorageEngine(file)));
+    }
+
+    @Test
+    public void failedCompactionLeavesTheLogWorking() throws IOException {
+        LogStorageEngine engine = new LogStorageEngine(file);
+        Map<String, String> expected = load(engine);
+        fillWithStaleValues(engine, expected);
+
+        // Without a writable directory there is nowhere to write the compacted file.
+        Assert.assertTrue(directory.setWritable(false));
+        try {
+            Assume.assumeFalse(directory.canWrite());
+            try {
+                engine.compact();
+                Assert.fail("Compacted without a writable directory");
+            } catch (IOException expectedFailure) {
+                // The old file stays in use.
+            }
+        } finally {
+            directory.setWritable(true);
+        }
+
+        engine.write(Collections.singletonMap("e", "5"), Collections.emptyMap(), Collections.emptySet());
+        engine.close();
+
+        expected.put("e", "5");
+        Assert.assertEquals(expected, load(new LogStorageEngine(file)));
+    }
+
+    /**
+     * Overwrites the same few keys until most of the log is stale and it is big enough to compact.
+     */
+    private static void fillWithStaleValues(LogStorageEngine engine, Map<String, String> expected)
+            throws IOException {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 100; i++) padding.append(i);
+        for (int round = 0; round < 200; round++) {
+            Map<String, String> puts = new HashMap<>();
+            for (int key = 0; key < 4; key++) {
+                puts.put("key" + key, round + ":" + padding);
+            }
+            engine.write(puts, Collections.emptyMap(), Collections.emptySet());
+            expected.putAll(puts);
+        }
+    }
+
+    /**
+     * Only the values from before the damaged record load, and a write after that is kept.
+     */
+    private void assertRecovered() throws IOException {
+        Map<String, String> expected = new HashMap<>();
+        expected.put("a", "1");
+        expected.put("b", "2");
+
+        LogStorageEngine engine = new LogStorageEngine(file);
+        Assert.assertEquals(expected, load(engine));
+        engine.write(Collections.singletonMap("e", "5"), Collections.emptyMap(), Collections.emptySet());
+        engine.close();
+
+        expected.put("e", "5");
+        Assert.assertEquals(expected, load(new LogStorageEngine(file)));
+    }
+
+    private static Map<String, String> load(LogStorageEngine engine) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        engine.load(values, new HashMap<>());
+        return values;
+    }
+
+    private void appendRecord(byte[] payload, int checksum) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.seek(secondRecord);
+            access.writeInt(payload.length);
+            access.writeInt(checksum);
+            access.write(payload);
+        }
+    }
+
+    private static byte[] put(String key, String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(LogStorageEngine.PUT);
+        writeString(out, key);
+        writeString(out, value);
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
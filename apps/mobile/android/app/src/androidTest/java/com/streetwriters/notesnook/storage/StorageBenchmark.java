@@ -0,0 +1,133 @@
+package com.streetwriters.notesnook.storage;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the log with and without value compression: file size, load time and read and write
+ * latency for a store of note-sized JSON values.
+ *
+ * Skipped unless asked for, so it stays out of the Detox runs:
+ * <pre>
+ *   adb shell am instrument -w -e benchmark true \
+ *     -e class com.streetwriters.notesnook.storage.StorageBenchmark \
+ *     com.streetwriters.notesnook.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ * Results are logged under the StorageBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StorageBenchmark {
+    private static final String TAG = "StorageBenchmark";
+    private static final int VALUES = 500;
+    private static final int READS = 5000;
+
+    private File directory;
+    private Map<String, String> values;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString("benchmark")));
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(context.getCacheDir(), TAG);
+        directory.mkdirs();
+
+        Random random = new Random(42);
+        values = new HashMap<>();
+        for (int i = 0; i < VALUES; i++) {
+            values.put(String.valueOf(i), createNote(random, i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) return;
+        for (File file : files) file.delete();
+    }
+
+    @Test
+    public void uncompressed() throws IOException {
+        run("uncompressed", Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        run("compressed", LogStorageEngine.DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    private void run(String label, int compressionThreshold) throws IOException {
+        File file = new File(directory, label + ".log");
+        file.delete();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        LogStorageEngine engine = new LogStorageEngine(file, compressionThreshold);
+        engine.load(new HashMap<>(), new HashMap<>());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            engine.write(Collections.singletonMap(entry.getKey(), entry.getValue()),
+                    Collections.emptyMap(), Collections.emptySet());
+        }
+        engine.sync();
+        long writeNanos = (SystemClock.elapsedRealtimeNanos() - start) / VALUES;
+        engine.compact();
+        engine.close();
+
+        // The file is mapped in whole chunks, so count the bytes a fresh copy actually needs.
+        File copy = new File(directory, label + ".copy.log");
+        copy.delete();
+        new LogStorageEngine(copy, compressionThreshold).create(values, Collections.emptyMap());
+
+        Map<String, String> loaded = new HashMap<>();
+        start = SystemClock.elapsedRealtimeNanos();
+        engine = new LogStorageEngine(file, compressionThreshold);
+        engine.load(loaded, new HashMap<>());
+        long loadMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+        engine.close();
+
+        // The store serves reads from memory, so decompression only shows up in the load time;
+        // this is measured to confirm the loaded strings cost the same to read either way.
+        Random random = new Random(7);
+        long characters = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < READS; i++) {
+            characters += loaded.get(String.valueOf(random.nextInt(VALUES))).length();
+        }
+        long readNanos = (SystemClock.elapsedRealtimeNanos() - start) / READS;
+
+        Log.i(TAG, label + ": file " + copy.length() + " bytes, load " + loadMillis + " ms, write "
+                + writeNanos + " ns, read " + readNanos + " ns (" + characters + " chars)");
+    }
+
+    private static String createNote(Random random, int index) {
+        String[] words = {"note", "meeting", "tomorrow", "list", "idea", "project", "call", "buy",
+                "remember", "draft", "review", "the", "and", "with", "for"};
+        StringBuilder headline = new StringBuilder();
+        int length = 200 + random.nextInt(1500);
+        while (headline.length() < length) {
+            headline.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return "{\"id\":\"" + Long.toHexString(random.nextLong()) + "\",\"type\":\"note\","
+                + "\"title\":\"Note " + index + "\",\"headline\":\"" + headline + "\","
+                + "\"dateCreated\":" + (1700000000000L + index) + ","
+                + "\"dateEdited\":" + (1700000000000L + index * 2L) + ","
+                + "\"pinned\":false,\"favorite\":" + (index % 3 == 0) + ","
+                + "\"color\":null,\"readonly\":false}";
+    }
+}
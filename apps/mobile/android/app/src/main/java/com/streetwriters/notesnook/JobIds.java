@@ -0,0 +1,23 @@
+package com.streetwriters.notesnook;
+
+/**
+ * The ids of every job the app itself schedules with JobScheduler, kept in one place so no two
+ * jobs can end up sharing one. An id is the job's identity to the system: scheduling a second job
+ * under it silently replaces the first.
+ *
+ * Libraries schedule jobs of their own under ids they pick, so ours sit in a block of their own,
+ * "NN" followed by a number.
+ */
+final class JobIds {
+    /**
+     * {@link StoreMaintenanceService} while the device is idle.
+     */
+    static final int STORE_MAINTENANCE_IDLE = 0x4E4E0001;
+    /**
+     * {@link StoreMaintenanceService} while the device is charging.
+     */
+    static final int STORE_MAINTENANCE_CHARGING = 0x4E4E0002;
+
+    private JobIds() {
+    }
+}
@@ -16,9 +16,15 @@ import androidx.core.view.WindowInsetsCompat;
 import com.facebook.react.ReactActivityDelegate;
 import com.facebook.react.defaults.DefaultNewArchitectureEntryPoint;
 import com.facebook.react.defaults.DefaultReactActivityDelegate;
+import com.streetwriters.notesnook.storage.KeyValueStore;
 import com.zoontek.rnbootsplash.RNBootSplash;
 
 public class MainActivity extends ReactActivity {
+  /**
+   * How long leaving the app may wait for pending writes, well short of what would be an ANR.
+   */
+  private static final long STOP_FLUSH_TIMEOUT_MS = 1000;
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     RNBootSplash.init(this, R.style.BootTheme);
@@ -28,6 +34,21 @@ public class MainActivity extends ReactActivity {
       WebView.setWebContentsDebuggingEnabled(true);
     }
 
+    try {
+      startService(new Intent(this, OnClearFromRecentService.class));
+    } catch (IllegalStateException e) {
+      // Only allowed while the app is in the foreground; without it pending writes are still
+      // flushed when the app is left, just not at the moment the task is swiped away.
+    }
+
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+    // Once the app is out of sight its process can be killed at any time, so this is where
+    // pending key-value store writes are made durable; see OnClearFromRecentService for the rest.
+    KeyValueStore.flushAll(STOP_FLUSH_TIMEOUT_MS);
   }
 
   /**
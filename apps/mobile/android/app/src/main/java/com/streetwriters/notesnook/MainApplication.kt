@@ -6,6 +6,7 @@ import com.facebook.react.ReactApplication
 import com.facebook.react.ReactHost
 import com.facebook.react.defaults.DefaultReactHost.getDefaultReactHost
 import com.facebook.react.ReactNativeApplicationEntryPoint.loadReactNative
+import com.streetwriters.notesnook.storage.KeyValueStore
 import org.wonday.orientation.OrientationActivityLifecycle;
 class MainApplication : Application(), ReactApplication {
     override val reactHost: ReactHost by lazy {
@@ -22,6 +23,13 @@ class MainApplication : Application(), ReactApplication {
  
   override fun onCreate() {
     super.onCreate()
+    // Read the stores into memory while React Native starts, so the first reads from JS (and
+    // from the widgets) are map lookups instead of waiting on their files. The widget store is
+    // started first; any other store JS has written to is found on disk, since RCTNNativeModule
+    // opens them by whatever name JS asks for.
+    KeyValueStore.preload(this, WidgetUtils.PREFERENCES)
+    KeyValueStore.preloadAll(this)
+    StoreMaintenanceService.schedule(this)
       registerActivityLifecycleCallbacks(OrientationActivityLifecycle.getInstance());
     loadReactNative(this)
   }
@@ -5,52 +5,102 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.util.SizeF;
 import android.view.View;
 import android.widget.RemoteViews;
 import com.streetwriters.notesnook.datatypes.Note;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public class NotePreviewWidget extends AppWidgetProvider {
     static String OpenNoteId = "com.streetwriters.notesnook.OpenNoteId";
     static void updateAppWidget(Context context, AppWidgetManager appWidgetManager,
                                 int appWidgetId) {
-        String data = context.getSharedPreferences(WidgetUtils.PREFERENCES, Context.MODE_PRIVATE).getString(String.valueOf(appWidgetId), "");
-        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.note_widget);
+        Note note = WidgetNotes.getNote(context, appWidgetId);
+        // From Android 12 the launcher is given the layouts with and without the preview text and
+        // picks one for the size itself, so resizing does not depend on us drawing it again.
+        boolean sized = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S;
+        boolean showBody = note != null && (sized || hasRoomForBody(appWidgetManager, appWidgetId));
+        String title = note == null
+                ? context.getString(R.string.widget_note_unconfigured_title) : note.getTitle();
+        String body = note == null
+                ? context.getString(R.string.widget_note_unconfigured_body) : note.getHeadline();
+
+        // Nothing but the stored note goes into a preview, so edits to other notes, reminders or
+        // the clock moving never need to redraw it.
+        WidgetDependencies.record(appWidgetId, note == null
+                ? Collections.emptySet() : Collections.singleton(WidgetDependencies.note(note.getId())));
+        WidgetRenderState.Update update = WidgetRenderState.update(appWidgetId,
+                note == null ? "unconfigured" : "note:" + note.getId() + (sized ? "" : ":" + showBody),
+                title + '\0' + body);
+        if (update == WidgetRenderState.Update.NONE) return;
+
+        RemoteViews views = createViews(context, title, body);
+        try {
+            // A partial update is merged into the views the launcher has, which it cannot do for
+            // a set of sized layouts; those are sent whole.
+            if (update == WidgetRenderState.Update.PARTIAL && (note == null || !sized)) {
+                // Everything else the widget shows is still what it was, only the text is new.
+                appWidgetManager.partiallyUpdateAppWidget(appWidgetId, views);
+                return;
+            }
+
+            if (note == null) {
+                // Either the widget was never configured, or we lost the note it pointed at (ids
+                // reassigned, data cleared). Point it back at the picker rather than leaving the
+                // user with an inert widget they can only fix by deleting and re-adding it.
+                views.setOnClickPendingIntent(R.id.open_note, getConfigurePendingIntent(context, appWidgetId));
+                appWidgetManager.updateAppWidget(appWidgetId, views);
+                return;
+            }
+
+            Intent intent = new Intent(context, MainActivity.class);
+            intent.putExtra(OpenNoteId, note.getId());
+            intent.setAction(Intent.ACTION_VIEW);
+            intent.putExtra(RCTNNativeModule.IntentType, "OpenNote");
+            intent.setData(Uri.parse("nn://note/" + note.getId()));
+            PendingIntent pendingIntent = WidgetPendingIntents.getActivity(context, appWidgetId, "open_note", intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+            if (sized) {
+                RemoteViews compact = createViews(context, title, body);
+                compact.setViewVisibility(R.id.widget_body, View.GONE);
+                compact.setOnClickPendingIntent(R.id.open_note, pendingIntent);
+                views.setOnClickPendingIntent(R.id.open_note, pendingIntent);
+
+                Map<SizeF, RemoteViews> layouts = new HashMap<>();
+                layouts.put(new SizeF(MIN_WIDTH_DP, MIN_HEIGHT_DP), compact);
+                layouts.put(new SizeF(MIN_WIDTH_DP, MIN_HEIGHT_FOR_BODY_DP), views);
+                appWidgetManager.updateAppWidget(appWidgetId, new RemoteViews(layouts));
+                return;
+            }
+
+            // Once the user shrinks the widget down to a single row there is no room for the
+            // preview text, and a clipped half-line of it looks like a rendering glitch.
+            views.setViewVisibility(R.id.widget_body, showBody ? View.VISIBLE : View.GONE);
+            views.setOnClickPendingIntent(R.id.open_note, pendingIntent);
 
-        Note note = WidgetUtils.parseNote(data);
-        if (note == null) {
-            // Either the widget was never configured, or we lost the note it pointed at (ids
-            // reassigned, data cleared). Point it back at the picker rather than leaving the user
-            // with an inert widget they can only fix by deleting and re-adding it.
-            views.setTextViewText(R.id.widget_title, context.getString(R.string.widget_note_unconfigured_title));
-            views.setTextViewText(R.id.widget_body, context.getString(R.string.widget_note_unconfigured_body));
-            views.setOnClickPendingIntent(R.id.open_note, getConfigurePendingIntent(context, appWidgetId));
             appWidgetManager.updateAppWidget(appWidgetId, views);
-            return;
+        } catch (RuntimeException e) {
+            // The widget may not show what we recorded, so do not skip the next redraw.
+            WidgetRenderState.forget(appWidgetId);
+            WidgetDependencies.forget(appWidgetId);
+            throw e;
         }
+    }
 
-        views.setTextViewText(R.id.widget_title, note.getTitle());
-        views.setTextViewText(R.id.widget_body, note.getHeadline());
-        // Once the user shrinks the widget down to a single row there is no room for the preview
-        // text, and a clipped half-line of it looks like a rendering glitch.
-        views.setViewVisibility(R.id.widget_body,
-                hasRoomForBody(appWidgetManager, appWidgetId) ? View.VISIBLE : View.GONE);
-
-        Intent intent = new Intent(context, MainActivity.class);
-        intent.putExtra(OpenNoteId, note.getId());
-        intent.setAction(Intent.ACTION_VIEW);
-        intent.putExtra(RCTNNativeModule.IntentType, "OpenNote");
-        intent.setData(Uri.parse("nn://note/" + note.getId()));
-        PendingIntent pendingIntent = PendingIntent.getActivity(context, appWidgetId, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE, WidgetUtils.getActivityOptionsBundle());
-        views.setOnClickPendingIntent(R.id.open_note, pendingIntent);
-
-        appWidgetManager.updateAppWidget(appWidgetId, views);
+    private static RemoteViews createViews(Context context, String title, String body) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.note_widget);
+        views.setTextViewText(R.id.widget_title, title);
+        views.setTextViewText(R.id.widget_body, body);
+        return views;
     }
 
     /**
@@ -64,15 +114,19 @@ public class NotePreviewWidget extends AppWidgetProvider {
         intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
         // PendingIntent equality ignores extras, so the widget id has to be the request code for
         // each widget to get its own.
-        return PendingIntent.getActivity(context, appWidgetId, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE,
-                WidgetUtils.getActivityOptionsBundle());
+        return WidgetPendingIntents.getActivity(context, appWidgetId, "configure", intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
     }
 
     /**
      * Height below which the note preview text is dropped, leaving just the title.
      */
     private static final int MIN_HEIGHT_FOR_BODY_DP = 70;
+    /**
+     * The smallest the widget can be resized to, from note_widget_info.
+     */
+    private static final int MIN_WIDTH_DP = 100;
+    private static final int MIN_HEIGHT_DP = 50;
 
     private static boolean hasRoomForBody(AppWidgetManager appWidgetManager, int appWidgetId) {
         Bundle options = appWidgetManager.getAppWidgetOptions(appWidgetId);
@@ -86,15 +140,18 @@ public class NotePreviewWidget extends AppWidgetProvider {
     @Override
     public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle newOptions) {
         super.onAppWidgetOptionsChanged(context, appWidgetManager, appWidgetId, newOptions);
+        // The launcher already has the layout for every size.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) return;
         // This used to do nothing at all, so resizing the widget left it rendered for its old size.
-        updateAppWidget(context, appWidgetManager, appWidgetId);
+        WidgetRefreshScheduler.requestNotePreviews(context, new int[]{appWidgetId},
+                WidgetRefreshScheduler.Reason.OPTIONS_CHANGED, goAsync());
     }
 
     /**
-     * The note shown by each widget is stored in the "appPreview" preferences under its widget id.
-     * When the system restores our widgets it hands out fresh ids, so unless we move the stored
-     * notes over to the new ids the widgets are left permanently blank with no way to recover
-     * other than removing and re-adding them.
+     * The note shown by each widget is stored against its widget id. When the system restores our
+     * widgets it hands out fresh ids, so unless we move the stored notes over to the new ids the
+     * widgets are left permanently blank with no way to recover other than removing and re-adding
+     * them.
      *
      * AppWidgetProvider calls onUpdate() with the new ids right after this, which re-renders them.
      */
@@ -102,47 +159,31 @@ public class NotePreviewWidget extends AppWidgetProvider {
     public void onRestored(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
         super.onRestored(context, oldWidgetIds, newWidgetIds);
         if (oldWidgetIds == null || newWidgetIds == null) return;
-
-        int count = Math.min(oldWidgetIds.length, newWidgetIds.length);
-        SharedPreferences preferences = context.getSharedPreferences("appPreview", Context.MODE_PRIVATE);
-
-        // Read everything up front: an old id can collide with the new id of another widget.
-        String[] notes = new String[count];
-        Set<String> newKeys = new HashSet<>();
-        for (int i = 0; i < count; i++) {
-            notes[i] = preferences.getString(String.valueOf(oldWidgetIds[i]), "");
-            newKeys.add(String.valueOf(newWidgetIds[i]));
+        WidgetNotes.moveWidgets(context, oldWidgetIds, newWidgetIds);
+        for (int id : newWidgetIds) {
+            WidgetRenderState.forget(id);
+            WidgetDependencies.forget(id);
+            WidgetPendingIntents.forget(id);
         }
-
-        SharedPreferences.Editor edit = preferences.edit();
-        for (int i = 0; i < count; i++) {
-            String oldKey = String.valueOf(oldWidgetIds[i]);
-            if (!newKeys.contains(oldKey)) {
-                edit.remove(oldKey);
-            }
-        }
-        for (int i = 0; i < count; i++) {
-            if (notes[i].isEmpty()) continue;
-            edit.putString(String.valueOf(newWidgetIds[i]), notes[i]);
-        }
-        edit.apply();
     }
 
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
         super.onDeleted(context, appWidgetIds);
-        SharedPreferences.Editor edit = context.getSharedPreferences("appPreview", Context.MODE_PRIVATE).edit();
+        List<Integer> ids = new ArrayList<>();
         for (int id: appWidgetIds) {
-            edit.remove(String.valueOf(id));
+            ids.add(id);
+            WidgetRenderState.forget(id);
+            WidgetDependencies.forget(id);
+            WidgetPendingIntents.forget(id);
         }
-        edit.apply();
+        WidgetNotes.removeWidgets(context, ids);
     }
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         // There may be multiple widgets active, so update all of them
-        for (int appWidgetId : appWidgetIds) {
-            updateAppWidget(context, appWidgetManager, appWidgetId);
-        }
+        WidgetRefreshScheduler.requestNotePreviews(context, appWidgetIds,
+                WidgetRefreshScheduler.Reason.SYSTEM, goAsync());
     }
 }
\ No newline at end of file
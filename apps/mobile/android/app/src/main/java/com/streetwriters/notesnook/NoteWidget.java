@@ -5,42 +5,70 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
+import android.util.SizeF;
 import android.widget.RemoteViews;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Implementation of App Widget functionality.
  */
 public class NoteWidget extends AppWidgetProvider {
 
+    /**
+     * Width below which only the icon is shown.
+     */
+    private static final int MIN_WIDTH_FOR_LABEL_DP = 100;
+    /**
+     * The smallest the widget can be resized to, from new_note_widget_info.
+     */
+    private static final int MIN_HEIGHT_DP = 50;
+
     static void updateAppWidget(Context context, AppWidgetManager appWidgetManager,
                                 int appWidgetId) {
-        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.new_note_widget);
-        setClickIntent(context, views);
-        appWidgetManager.updateAppWidget(appWidgetId, views);
+        appWidgetManager.updateAppWidget(appWidgetId, buildViews(context, null));
     }
 
     static void setClickIntent(Context context, RemoteViews views) {
         Intent intent = new Intent(context, ShareActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE, WidgetUtils.getActivityOptionsBundle());
+        // The same for every widget and both sized layouts.
+        PendingIntent pendingIntent = WidgetPendingIntents.getActivity(context, 0, "new_note", intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         views.setOnClickPendingIntent(R.id.new_note, pendingIntent);
     }
 
-    @Override
-    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle newOptions) {
-        super.onAppWidgetOptionsChanged(context, appWidgetManager, appWidgetId, newOptions);
-        updateAppWidget(context, appWidgetManager, appWidgetId, newOptions);
-    }
+    /**
+     * On Android 12 and later, both layouts at once: the launcher picks between them itself as the
+     * widget is resized or the screen rotates, without starting the app to draw it again. Before
+     * that, the layout for the size in {@code options}, or the full one if there are none.
+     */
+    private static RemoteViews buildViews(Context context, Bundle options) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            Map<SizeF, RemoteViews> layouts = new HashMap<>();
+            layouts.put(new SizeF(MIN_HEIGHT_DP, MIN_HEIGHT_DP), buildViews(context, R.layout.new_note_widget_icon));
+            layouts.put(new SizeF(MIN_WIDTH_FOR_LABEL_DP, MIN_HEIGHT_DP), buildViews(context, R.layout.new_note_widget));
+            return new RemoteViews(layouts);
+        }
 
-    private void updateAppWidget(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle options) {
         int minWidth = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH) : 0;
-        int minHeight = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT) : 0;
-
-        int layoutId = (minWidth < 100) ? R.layout.new_note_widget_icon : R.layout.new_note_widget;
+        boolean icon = options != null && minWidth < MIN_WIDTH_FOR_LABEL_DP;
+        return buildViews(context, icon ? R.layout.new_note_widget_icon : R.layout.new_note_widget);
+    }
 
+    private static RemoteViews buildViews(Context context, int layoutId) {
         RemoteViews views = new RemoteViews(context.getPackageName(), layoutId);
         setClickIntent(context, views);
-        appWidgetManager.updateAppWidget(appWidgetId, views);
+        return views;
+    }
+
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle newOptions) {
+        super.onAppWidgetOptionsChanged(context, appWidgetManager, appWidgetId, newOptions);
+        // The launcher already has every layout to choose from.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) return;
+        appWidgetManager.updateAppWidget(appWidgetId, buildViews(context, newOptions));
     }
 
 
@@ -50,4 +78,4 @@ public class NoteWidget extends AppWidgetProvider {
             updateAppWidget(context, appWidgetManager, appWidgetId);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package com.streetwriters.notesnook;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+import com.streetwriters.notesnook.storage.KeyValueStore;
+
+/**
+ * Started alongside the app only to hear about the task being swiped away from recents, to get
+ * pending key-value store writes onto the disk before the process is killed.
+ *
+ * Best effort only: from Android 8 the system stops a background service about a minute after the
+ * app leaves the foreground, and onTaskRemoved never arrives after that. What makes the writes
+ * durable is {@link MainActivity#onStop()}; this only covers writes made after it, while the app
+ * is still in recents.
+ */
+public class OnClearFromRecentService extends Service {
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onTaskRemoved(Intent rootIntent) {
+        KeyValueStore.flushAll();
+        stopSelf();
+    }
+}
@@ -1,11 +1,7 @@
 package com.streetwriters.notesnook;
 
 import android.app.Activity;
-import android.appwidget.AppWidgetManager;
-import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.ShortcutInfo;
 import android.content.pm.ShortcutManager;
 import android.graphics.Bitmap;
@@ -16,9 +12,7 @@ import android.graphics.drawable.Icon;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.Settings;
-import android.util.Log;
 import android.view.WindowManager;
-import android.widget.RemoteViews;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
@@ -26,11 +20,16 @@ import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
-import com.streetwriters.notesnook.datatypes.Note;
+import com.streetwriters.notesnook.datatypes.Reminder;
+import com.streetwriters.notesnook.datatypes.ReminderParser;
+import com.streetwriters.notesnook.storage.KeyValueStore;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -98,25 +97,129 @@ public class RCTNNativeModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void setString(final String storeName, final String key, final String value) {
-        SharedPreferences details = getReactApplicationContext().getSharedPreferences(storeName, Context.MODE_PRIVATE);
-        SharedPreferences.Editor edit = details.edit();
-        edit.putString(key, value);
-        edit.apply();
+        getStore(storeName).edit().putString(key, value).apply();
+    }
+
+    /**
+     * Same as setString, but the value reads as missing once {@code expiresInMs} has passed, and
+     * is cleared out of the store by the next housekeeping run after that.
+     */
+    @ReactMethod
+    public void setStringWithExpiry(final String storeName, final String key, final String value, final double expiresInMs) {
+        long expiresAt = System.currentTimeMillis() + (long) expiresInMs;
+        getStore(storeName).edit().putString(key, value, expiresAt).apply();
     }
 
     @ReactMethod
     public void removeString(final String storeName, final String key) {
-        SharedPreferences details = getReactApplicationContext().getSharedPreferences(storeName, Context.MODE_PRIVATE);
-        SharedPreferences.Editor edit = details.edit();
-        edit.remove(key);
-        edit.apply();
+        getStore(storeName).edit().remove(key).apply();
     }
 
     @ReactMethod
     public void getString(final String storeName, final String key, Promise promise) {
-        SharedPreferences details = getReactApplicationContext().getSharedPreferences(storeName, Context.MODE_PRIVATE);
-        String value = details.getString(key, "");
-        promise.resolve(value.isEmpty() ? null : value);
+        promise.resolve(getStringSync(storeName, key));
+    }
+
+    /**
+     * Same as getString, but answered on the JS thread straight from the in-memory copy of the
+     * store. Stores are preloaded when the app starts, so this does not wait on the disk.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public String getStringSync(final String storeName, final String key) {
+        String value = getStore(storeName).getString(key);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Reads several keys in one bridge call. Resolves with [key, value] pairs in the order the keys
+     * were given, with a null value for keys that are not set, same as getString.
+     */
+    @ReactMethod
+    public void multiGet(final String storeName, final ReadableArray keys, Promise promise) {
+        KeyValueStore store = getStore(storeName);
+        WritableArray result = Arguments.createArray();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.getString(i);
+            String value = store.getString(key);
+            WritableArray pair = Arguments.createArray();
+            pair.pushString(key);
+            if (value == null || value.isEmpty()) pair.pushNull();
+            else pair.pushString(value);
+            result.pushArray(pair);
+        }
+        promise.resolve(result);
+    }
+
+    /**
+     * Writes several [key, value] pairs with a single editor, so they reach the disk as one write
+     * instead of one full rewrite of the file per key.
+     */
+    @ReactMethod
+    public void multiSet(final String storeName, final ReadableArray pairs) {
+        KeyValueStore.Editor edit = getStore(storeName).edit();
+        putPairs(edit, pairs);
+        edit.apply();
+    }
+
+    @ReactMethod
+    public void multiRemove(final String storeName, final ReadableArray keys) {
+        KeyValueStore.Editor edit = getStore(storeName).edit();
+        removeKeys(edit, keys);
+        edit.apply();
+    }
+
+    /**
+     * Sets and removes keys as a single all-or-nothing change. Unlike multiSet this waits for the
+     * write to land and resolves with whether it did, for callers that must not carry on with only
+     * half of a change saved.
+     */
+    @ReactMethod
+    public void transaction(final String storeName, final ReadableArray pairsToSet, final ReadableArray keysToRemove, Promise promise) {
+        KeyValueStore.Editor edit = getStore(storeName).edit();
+        try {
+            // Removals first, so a key that is both removed and set ends up set.
+            if (keysToRemove != null) removeKeys(edit, keysToRemove);
+            if (pairsToSet != null) putPairs(edit, pairsToSet);
+        } catch (Exception e) {
+            // A malformed pair: nothing has been written yet, so the store is left as it was.
+            promise.reject("ERROR", e.getMessage());
+            return;
+        }
+        promise.resolve(edit.commit());
+    }
+
+    /**
+     * Lists the keys of a store that start with the prefix, a page at a time and in sorted order.
+     * Resolves with the keys and the cursor to pass in for the next page, which is null once there
+     * are no more.
+     */
+    @ReactMethod
+    public void scan(final String storeName, final String prefix, final String cursor, final int limit, Promise promise) {
+        KeyValueStore.Page page = getStore(storeName).scan(prefix, cursor, limit);
+        WritableArray keys = Arguments.createArray();
+        for (String key : page.keys) keys.pushString(key);
+
+        WritableMap result = Arguments.createMap();
+        result.putArray("keys", keys);
+        result.putString("cursor", page.cursor);
+        promise.resolve(result);
+    }
+
+    private static void putPairs(KeyValueStore.Editor edit, ReadableArray pairs) {
+        for (int i = 0; i < pairs.size(); i++) {
+            ReadableArray pair = pairs.getArray(i);
+            edit.putString(pair.getString(0), pair.getString(1));
+        }
+    }
+
+    private static void removeKeys(KeyValueStore.Editor edit, ReadableArray keys) {
+        for (int i = 0; i < keys.size(); i++) {
+            edit.remove(keys.getString(i));
+        }
+    }
+
+    private KeyValueStore getStore(String storeName) {
+        return KeyValueStore.get(getReactApplicationContext(), storeName);
     }
 
     @ReactMethod
@@ -155,42 +258,59 @@ public class RCTNNativeModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void getWidgetNotes(Promise promise) {
         WritableArray arr = Arguments.createArray();
-        for (Note note : WidgetUtils.getWidgetNotes(getReactApplicationContext()).values()) {
-            arr.pushString(note.getId());
+        for (String noteId : WidgetNotes.getNoteIds(getReactApplicationContext())) {
+            arr.pushString(noteId);
         }
         promise.resolve(arr);
     }
 
     @ReactMethod
     public void hasWidgetNote(final String noteId, Promise promise) {
-        boolean found = false;
-        for (Note note : WidgetUtils.getWidgetNotes(getReactApplicationContext()).values()) {
-            if (note.getId().equals(noteId)) {
-                found = true;
-                break;
-            }
-        }
-        promise.resolve(found);
+        promise.resolve(!WidgetNotes.getWidgetIds(getReactApplicationContext(), noteId).isEmpty());
+    }
+
+    /**
+     * Points a note preview widget at a note. Used by the configure screen once the user has
+     * picked one.
+     */
+    @ReactMethod
+    public void setWidgetNote(final int widgetId, final String noteId, final String data) {
+        WidgetNotes.setWidgetNote(getReactApplicationContext(), widgetId, noteId, data);
     }
 
     @ReactMethod
     public void updateWidgetNote(final String noteId, final String data) {
-        SharedPreferences pref = getReactApplicationContext().getSharedPreferences(WidgetUtils.PREFERENCES, Context.MODE_PRIVATE);
-        SharedPreferences.Editor edit = pref.edit();
-        List<Integer> ids = new ArrayList<>();
-
-        // Match on the note's id, not on the raw JSON containing it somewhere: a note whose body
-        // happens to mention another note's id is not the same note.
-        for (Map.Entry<Integer, Note> entry : WidgetUtils.getWidgetNotes(getReactApplicationContext()).entrySet()) {
-            if (!noteId.equals(entry.getValue().getId())) continue;
-            edit.putString(String.valueOf(entry.getKey()), data);
-            ids.add(entry.getKey());
-        }
-        edit.apply();
+        if (WidgetNotes.updateNote(getReactApplicationContext(), noteId, data).isEmpty()) return;
+        WidgetRefreshScheduler.invalidate(mContext, WidgetDependencies.note(noteId),
+                WidgetRefreshScheduler.Reason.NOTE_CHANGED, null);
+    }
 
-        for (int id : ids) {
-            NotePreviewWidget.updateAppWidget(mContext, AppWidgetManager.getInstance(mContext), id);
+    /**
+     * Updates many widget notes with one write and redraws each affected widget once. Each entry
+     * is a map with the note's {@code id} and either {@code data}, the full note as JSON, or
+     * {@code patch}, a JSON object of just the fields that changed.
+     */
+    @ReactMethod
+    public void updateWidgetNotes(final ReadableArray batch) {
+        Map<String, String> notes = new HashMap<>();
+        Map<String, String> patches = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            ReadableMap entry = batch.getMap(i);
+            if (entry == null || !entry.hasKey("id")) continue;
+            String noteId = entry.getString("id");
+            if (entry.hasKey("data") && !entry.isNull("data")) {
+                notes.put(noteId, entry.getString("data"));
+            } else if (entry.hasKey("patch") && !entry.isNull("patch")) {
+                patches.put(noteId, entry.getString("patch"));
+            }
         }
+
+        if (WidgetNotes.updateNotes(getReactApplicationContext(), notes, patches).isEmpty()) return;
+        List<String> dependencies = new ArrayList<>();
+        for (String noteId : notes.keySet()) dependencies.add(WidgetDependencies.note(noteId));
+        for (String noteId : patches.keySet()) dependencies.add(WidgetDependencies.note(noteId));
+        WidgetRefreshScheduler.invalidate(mContext, dependencies,
+                WidgetRefreshScheduler.Reason.NOTE_CHANGED, null);
     }
 
     /**
@@ -203,16 +323,111 @@ public class RCTNNativeModule extends ReactContextBaseJavaModule {
         WidgetUtils.refreshAll(mContext);
     }
 
+    /**
+     * How many widget redraws were asked for since the process started, how many were merged
+     * into another redraw of the same widget, and of the ones that were drawn how many were sent
+     * in full, sent as a partial update, or skipped because nothing they show had changed. Also
+     * how many PendingIntents the widgets asked the system for, and how many they reused instead.
+     */
+    @ReactMethod
+    public void getWidgetRenderStats(Promise promise) {
+        WritableMap stats = Arguments.createMap();
+        long requested = WidgetRefreshScheduler.getRequested();
+        stats.putDouble("requested", requested);
+        stats.putDouble("merged", requested - WidgetRefreshScheduler.getDrawn());
+        stats.putDouble("full", WidgetRenderState.getFullUpdates());
+        stats.putDouble("partial", WidgetRenderState.getPartialUpdates());
+        stats.putDouble("skipped", WidgetRenderState.getSkippedUpdates());
+        stats.putDouble("intentsCreated", WidgetPendingIntents.getCreated());
+        stats.putDouble("intentsReused", WidgetPendingIntents.getReused());
+        promise.resolve(stats);
+    }
+
     @ReactMethod
     public void updateReminderWidget() {
-        AppWidgetManager wm = AppWidgetManager.getInstance(mContext);
-        int[] ids = wm.getAppWidgetIds(ComponentName.createRelative(mContext.getPackageName(), ReminderWidgetProvider.class.getName()));
-        for (int id: ids) {
-            Log.d("Reminders", "Updating" + id);
-            RemoteViews views = new RemoteViews(mContext.getPackageName(), R.layout.widget_reminders);
-            // The rows are part of this update, so there is nothing left to invalidate afterwards.
-            ReminderWidgetProvider.updateAppWidget(mContext, wm, id, views);
+        // The rows are part of the redraw, so there is nothing left to invalidate afterwards.
+        WidgetRefreshScheduler.invalidate(mContext, WidgetDependencies.REMINDERS,
+                WidgetRefreshScheduler.Reason.REMINDERS_CHANGED, null);
+    }
+
+    /**
+     * Adds or replaces one reminder shown by the reminders widget, given as JSON, without
+     * touching the others.
+     */
+    @ReactMethod
+    public void upsertReminder(final String data) {
+        if (WidgetReminders.upsert(getReactApplicationContext(), data)) updateReminderWidget();
+    }
+
+    @ReactMethod
+    public void removeReminder(final String id) {
+        if (WidgetReminders.remove(getReactApplicationContext(), id)) updateReminderWidget();
+    }
+
+    /**
+     * Replaces every reminder shown by the reminders widget with the ones in the JSON array. Only
+     * the reminders that differ from what is stored are written.
+     */
+    @ReactMethod
+    public void replaceAllReminders(final String list) {
+        if (WidgetReminders.replaceAll(getReactApplicationContext(), list)) updateReminderWidget();
+    }
+
+    /**
+     * Sets the date and time formats reminder rows are labelled in, as the app's settings name
+     * them, e.g. "DD-MM-YYYY" and "12-hour".
+     */
+    @ReactMethod
+    public void setReminderFormats(final String dateFormat, final String timeFormat) {
+        if (ReminderLabels.setFormats(getReactApplicationContext(), dateFormat, timeFormat)) {
+            updateReminderWidget();
+        }
+    }
+
+    /**
+     * How long a snooze from the reminders widget lasts, in minutes.
+     */
+    @ReactMethod
+    public void setReminderSnoozeTime(final int minutes) {
+        ReminderActions.setSnoozeMinutes(getReactApplicationContext(), minutes);
+    }
+
+    /**
+     * Resolves with the reminders snoozed or marked done from the widget since the last call, as
+     * a JSON array of the reminder ids and the fields that changed, and clears them.
+     */
+    @ReactMethod
+    public void takePendingReminderActions(Promise promise) {
+        promise.resolve(ReminderActions.takePending(getReactApplicationContext()));
+    }
+
+    /**
+     * The next {@code count} times a reminder, given as JSON, goes off after {@code after}, in
+     * milliseconds. Resolves with fewer for a reminder that does not repeat: its one time if it is
+     * still to come, or none.
+     */
+    @ReactMethod
+    public void getReminderOccurrences(final String data, final double after, final int count, Promise promise) {
+        Reminder reminder = ReminderParser.INSTANCE.parse(data);
+        if (reminder == null) {
+            promise.reject("INVALID", "Could not read the reminder");
+            return;
+        }
+        WritableArray result = Arguments.createArray();
+        RecurrenceEngine.Rule rule = RecurrenceEngine.Rule.of(reminder);
+        if (rule == null) {
+            if (reminder.getDate() > after && count > 0) result.pushDouble(reminder.getDate());
+            promise.resolve(result);
+            return;
+        }
+        long[] occurrences = new long[Math.max(0, count)];
+        int found;
+        RecurrenceEngine engine = RecurrenceEngine.getDefault();
+        synchronized (engine) {
+            found = engine.next(rule, (long) after, occurrences);
         }
+        for (int i = 0; i < found; i++) result.pushDouble(occurrences[i]);
+        promise.resolve(result);
     }
 
     @ReactMethod(isBlockingSynchronousMethod = true)
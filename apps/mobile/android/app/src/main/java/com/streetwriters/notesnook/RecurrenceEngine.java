@@ -0,0 +1,249 @@
+package com.streetwriters.notesnook;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Works out when a repeating reminder goes off, so the widget does not have to rely on the next
+ * time the app computed the last time it ran. A reminder left alone for a few days would
+ * otherwise keep showing an occurrence that has long gone by.
+ *
+ * The rules are the app's (getUpcomingReminderTime in @notesnook/core):
+ * <ul>
+ *   <li>day: every day at the time of day of the reminder's date;</li>
+ *   <li>week: on the selected days of the week, 0 being Sunday;</li>
+ *   <li>month: on the selected days of the month, 1 to 31;</li>
+ *   <li>year: every year on the month, day and time of the reminder's date.</li>
+ * </ul>
+ * A week or month rule with no days selected is taken the way the app's own list takes it: as
+ * going off today at the reminder's time, whether or not that has gone by. The app's editor does
+ * not let such a rule be saved and no notification is scheduled for one, so this only keeps the
+ * widget showing the same thing as the app for reminders that got that way some other way.
+ *
+ * Occurrences are placed in local wall clock time, one calendar day at a time, so a reminder set
+ * for 9:00 stays at 9:00 across a DST change. A time that does not exist on the day the clocks go
+ * forward moves forward with them, and a time that happens twice when they go back only counts
+ * once. A month without the selected day (the 31st in April, the 29th in most Februaries) is
+ * skipped, the same way calendars do it, rather than rolling over into the next month.
+ *
+ * An engine keeps one Calendar for its timezone and is not thread safe; {@link #getDefault()}
+ * returns one for the device timezone that callers share by synchronizing on it.
+ */
+final class RecurrenceEngine {
+    private static final int DAY = 0;
+    private static final int WEEK = 1;
+    private static final int MONTH = 2;
+    private static final int YEAR = 3;
+
+    private static final String[] MODES = {"day", "week", "month", "year"};
+
+    /**
+     * How far ahead to look before deciding a rule never matches: enough for a month rule on the
+     * 31st and a yearly one on the 29th of February.
+     */
+    private static final int MAX_MONTHS = 12;
+    private static final int MAX_YEARS = 8;
+
+    private static RecurrenceEngine shared;
+
+    /**
+     * A repeating reminder reduced to what its occurrences depend on. Immutable.
+     */
+    static final class Rule {
+        final int mode;
+        /**
+         * The reminder's date; only its time of day, and for a yearly rule its month and day,
+         * count.
+         */
+        final long date;
+        /**
+         * The selected days as bits: days of the week 0 to 6, or days of the month 1 to 31.
+         */
+        final long days;
+
+        Rule(int mode, long date, long days) {
+            this.mode = mode;
+            this.date = date;
+            this.days = days;
+        }
+
+        /**
+         * The rule the reminder repeats by, or null if it does not repeat.
+         */
+        static Rule of(Reminder reminder) {
+            if (!"repeat".equals(reminder.getMode())) return null;
+            int mode = indexOf(reminder.getRecurringMode());
+            if (mode < 0) return null;
+
+            long days = 0;
+            int[] selectedDays = reminder.getSelectedDays();
+            if (selectedDays != null && (mode == WEEK || mode == MONTH)) {
+                int max = mode == WEEK ? 6 : 31;
+                int min = mode == WEEK ? 0 : 1;
+                for (int day : selectedDays) {
+                    if (day >= min && day <= max) days |= 1L << day;
+                }
+            }
+            return new Rule(mode, reminder.getDate(), days);
+        }
+
+        /**
+         * A compact form without spaces, e.g. "week/1712496832000/42", read back by
+         * {@link #decode}.
+         */
+        String encode() {
+            return MODES[mode] + '/' + date + '/' + days;
+        }
+
+        /**
+         * Reads back an encoded rule, or returns null if it cannot be read.
+         */
+        static Rule decode(String encoded) {
+            String[] fields = encoded.split("/");
+            if (fields.length != 3) return null;
+            int mode = indexOf(fields[0]);
+            if (mode < 0) return null;
+            try {
+                return new Rule(mode, Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static int indexOf(String mode) {
+            for (int i = 0; i < MODES.length; i++) {
+                if (MODES[i].equals(mode)) return i;
+            }
+            return -1;
+        }
+    }
+
+    private final TimeZone timeZone;
+    private final Calendar calendar;
+
+    RecurrenceEngine(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        calendar = Calendar.getInstance(timeZone);
+    }
+
+    /**
+     * An engine for the device timezone, replaced when that changes. Synchronize on it while
+     * using it.
+     */
+    static synchronized RecurrenceEngine getDefault() {
+        TimeZone timeZone = TimeZone.getDefault();
+        if (shared == null || !shared.timeZone.hasSameRules(timeZone)) {
+            shared = new RecurrenceEngine(timeZone);
+        }
+        return shared;
+    }
+
+    /**
+     * When the reminder next goes off after {@code now}, for reminders that repeat, or the time
+     * the app last worked out for it otherwise. Zero if there is none.
+     */
+    static long getTriggerDate(Reminder reminder, long now) {
+        Rule rule = Rule.of(reminder);
+        if (rule == null) return reminder.getTriggerDate() > 0 ? reminder.getTriggerDate() : reminder.getDate();
+        RecurrenceEngine engine = getDefault();
+        synchronized (engine) {
+            long next = engine.next(rule, now);
+            return next == Long.MAX_VALUE ? 0 : next;
+        }
+    }
+
+    /**
+     * The first occurrence strictly after {@code after}, or {@code Long.MAX_VALUE} if the rule
+     * never matches. A week or month rule with no days selected is the exception: it always
+     * returns the time on the day of {@code after}, see the class comment.
+     */
+    long next(Rule rule, long after) {
+        calendar.setTimeInMillis(rule.date);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        int minute = calendar.get(Calendar.MINUTE);
+        int dateMonth = calendar.get(Calendar.MONTH);
+        int dateDay = calendar.get(Calendar.DAY_OF_MONTH);
+
+        calendar.setTimeInMillis(after);
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH);
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+
+        switch (rule.mode) {
+            case DAY: {
+                // Today's, or failing that tomorrow's.
+                for (int i = 0; i <= 1; i++) {
+                    long time = at(year, month, day + i, hour, minute);
+                    if (time > after) return time;
+                }
+                return Long.MAX_VALUE;
+            }
+            case WEEK: {
+                if (rule.days == 0) return at(year, month, day, hour, minute);
+                for (int i = 0; i <= 7; i++) {
+                    long time = at(year, month, day + i, hour, minute);
+                    int weekday = calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+                    if ((rule.days & (1L << weekday)) != 0 && time > after) return time;
+                }
+                return Long.MAX_VALUE;
+            }
+            case MONTH: {
+                if (rule.days == 0) return at(year, month, day, hour, minute);
+                for (int i = 0; i <= MAX_MONTHS; i++) {
+                    calendar.clear();
+                    calendar.set(year, month + i, 1);
+                    int lastDay = calendar.getActualMaximum(Calendar.DAY_OF_MONTH);
+                    int first = i == 0 ? day : 1;
+                    for (int d = first; d <= lastDay; d++) {
+                        if ((rule.days & (1L << d)) == 0) continue;
+                        long time = at(year, month + i, d, hour, minute);
+                        if (time > after) return time;
+                    }
+                }
+                return Long.MAX_VALUE;
+            }
+            case YEAR: {
+                for (int i = 0; i <= MAX_YEARS; i++) {
+                    calendar.clear();
+                    calendar.set(year + i, dateMonth, 1);
+                    if (dateDay > calendar.getActualMaximum(Calendar.DAY_OF_MONTH)) continue;
+                    long time = at(year + i, dateMonth, dateDay, hour, minute);
+                    if (time > after) return time;
+                }
+                return Long.MAX_VALUE;
+            }
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Fills {@code out} with the occurrences that follow {@code after}, in order.
+     *
+     * @return how many there were, fewer than {@code out.length} only if the rule stops matching
+     * or, without days selected, does not move past the day of {@code after}.
+     */
+    int next(Rule rule, long after, long[] out) {
+        int count = 0;
+        long time = after;
+        while (count < out.length) {
+            long next = next(rule, time);
+            if (next == Long.MAX_VALUE || next <= time) break;
+            out[count++] = next;
+            time = next;
+        }
+        return count;
+    }
+
+    /**
+     * The instant of a local date and time. Days past the end of the month carry over into the
+     * next, and the calendar is left on that day.
+     */
+    private long at(int year, int month, int day, int hour, int minute) {
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute, 0);
+        return calendar.getTimeInMillis();
+    }
+}
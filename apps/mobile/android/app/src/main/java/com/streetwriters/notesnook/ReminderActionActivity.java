@@ -0,0 +1,35 @@
+package com.streetwriters.notesnook;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Where every tap on a reminders widget row lands first.
+ *
+ * The rows of a collection widget can only fill in one PendingIntent shared by the whole list, so
+ * opening a reminder and tapping its snooze or done button have to go to the same place. That
+ * place has to be an activity, since a broadcast receiver is not allowed to bring up the app from
+ * the background when a row is opened. This one has no UI and finishes straight away: a snooze or
+ * done is passed on to {@link ReminderActionReceiver}, and anything else opens the app as the row
+ * used to.
+ */
+public class ReminderActionActivity extends Activity {
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Intent intent = getIntent();
+        String action = intent.getStringExtra(ReminderActionReceiver.EXTRA_ACTION);
+        if (ReminderActions.SNOOZE.equals(action) || ReminderActions.DONE.equals(action)) {
+            sendBroadcast(ReminderActionReceiver.getIntent(this, action,
+                    intent.getStringExtra(ReminderWidgetProvider.OpenReminderId)));
+        } else {
+            Intent open = new Intent(intent);
+            open.setClass(this, MainActivity.class);
+            open.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(open);
+        }
+        finish();
+    }
+}
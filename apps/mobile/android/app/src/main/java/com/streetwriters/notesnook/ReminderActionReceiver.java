@@ -0,0 +1,33 @@
+package com.streetwriters.notesnook;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Snoozes a reminder or marks it done when its button in the reminders widget is tapped, then
+ * redraws the widget and has {@link ReminderActionTaskService} bring the app's notifications in
+ * line. Sent by {@link ReminderActionActivity}; nothing here brings up the app's UI.
+ */
+public class ReminderActionReceiver extends BroadcastReceiver {
+    static final String ACTION = "com.streetwriters.notesnook.REMINDER_ACTION";
+    static final String EXTRA_ACTION = "com.streetwriters.notesnook.ReminderAction";
+
+    static Intent getIntent(Context context, String action, String reminderId) {
+        Intent intent = new Intent(context, ReminderActionReceiver.class);
+        intent.setAction(ACTION);
+        intent.putExtra(EXTRA_ACTION, action);
+        intent.putExtra(ReminderWidgetProvider.OpenReminderId, reminderId);
+        return intent;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getStringExtra(EXTRA_ACTION);
+        String id = intent.getStringExtra(ReminderWidgetProvider.OpenReminderId);
+        if (!ReminderActions.apply(context, action, id, System.currentTimeMillis())) return;
+        ReminderActionTaskService.start(context);
+        WidgetRefreshScheduler.invalidate(context, WidgetDependencies.REMINDERS,
+                WidgetRefreshScheduler.Reason.REMINDER_ACTION, goAsync());
+    }
+}
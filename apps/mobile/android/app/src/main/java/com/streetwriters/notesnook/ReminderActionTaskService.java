@@ -0,0 +1,56 @@
+package com.streetwriters.notesnook;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.facebook.react.HeadlessJsTaskService;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.jstasks.HeadlessJsTaskConfig;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs the app's JS, without its UI, to apply a snooze or done from the reminders widget straight
+ * away: the reminder is changed in the database and its notifications are scheduled again, or
+ * cancelled, the same as for the buttons on the notification itself.
+ *
+ * {@link ReminderActions} only changes the widget's copy; without this the app's notifications
+ * would not know about the tap until it next set up reminders, so a snoozed reminder would not go
+ * off again and one marked done still would.
+ */
+public class ReminderActionTaskService extends HeadlessJsTaskService {
+    private static final String TAG = "ReminderActionTask";
+
+    static final String TASK = "com.streetwriters.notesnook.REMINDER_ACTION_TASK";
+
+    /**
+     * Starts the task. Only sent right after the user tapped the widget, while the app may still
+     * start services; if it can not, the queued action waits for the app to set up reminders.
+     */
+    static void start(Context context) {
+        try {
+            context.startService(new Intent(context, ReminderActionTaskService.class));
+            HeadlessJsTaskService.acquireWakeLockNow(context);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not apply the reminder action now", e);
+        }
+    }
+
+    @Override
+    protected @Nullable HeadlessJsTaskConfig getTaskConfig(Intent intent) {
+        return new HeadlessJsTaskConfig(
+                TASK,
+                Arguments.createMap(),
+                30000,
+                // The app may be open behind the widget, in which case its JS applies it.
+                true
+        );
+    }
+
+    @Override
+    public void onHeadlessJsTaskFinish(int taskId) {
+        super.onHeadlessJsTaskFinish(taskId);
+        stopSelf();
+    }
+}
@@ -0,0 +1,174 @@
+package com.streetwriters.notesnook;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.streetwriters.notesnook.datatypes.Reminder;
+import com.streetwriters.notesnook.storage.KeyValueStore;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snoozing a reminder or marking it done from the reminders widget, without starting the app.
+ *
+ * The widget's copy of the reminder is changed straight away so the row updates, and the change
+ * is queued under {@code reminderAction:<reminder id>} for the app to apply to its database, see
+ * takePendingReminderActions. {@link ReminderActionTaskService} has the app do that right away,
+ * and reschedule the reminder's notifications; if it can not be started, the app does it the next
+ * time it sets up reminders. Until then the queued change is laid over whatever copy the app sends
+ * the widget in the meantime.
+ *
+ * Done turns the reminder off, so it is only offered for reminders that go off once: for a
+ * repeating one it would end the whole series, not just the occurrence that was shown.
+ *
+ * Several taps on the same reminder are folded into one queued change, the later fields winning.
+ */
+final class ReminderActions {
+    private static final String TAG = "ReminderActions";
+
+    static final String SNOOZE = "snooze";
+    static final String DONE = "done";
+
+    /**
+     * How long a snooze lasts, in minutes, as set in the app.
+     */
+    static final String SNOOZE_MINUTES_KEY = "reminderSnoozeMinutes";
+    private static final int DEFAULT_SNOOZE_MINUTES = 5;
+
+    private static final String PENDING_PREFIX = "reminderAction:";
+
+    private ReminderActions() {
+    }
+
+    /**
+     * Applies the action to the widget's copy of the reminder and queues it for the app.
+     *
+     * @return whether the reminder was found and changed.
+     */
+    static synchronized boolean apply(Context context, String action, String id, long now) {
+        String data = id == null ? null : WidgetReminders.getData(context, id);
+        if (data == null) {
+            Log.w(TAG, "No stored reminder for " + action);
+            return false;
+        }
+
+        JsonObject reminder;
+        try {
+            reminder = JsonParser.parseString(data).getAsJsonObject();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not read the stored reminder", e);
+            return false;
+        }
+
+        KeyValueStore store = WidgetUtils.getStore(context);
+        JsonObject changes = readObject(store.getString(PENDING_PREFIX + id));
+        if (SNOOZE.equals(action)) {
+            long snoozeUntil = now + TimeUnit.MINUTES.toMillis(getSnoozeMinutes(context));
+            reminder.addProperty("snoozeUntil", snoozeUntil);
+            changes.addProperty("snoozeUntil", snoozeUntil);
+        } else if (DONE.equals(action)) {
+            if (isRepeating(reminder)) {
+                Log.w(TAG, "Not ending a repeating reminder from the widget");
+                return false;
+            }
+            reminder.addProperty("disabled", true);
+            changes.addProperty("disabled", true);
+        } else {
+            Log.w(TAG, "Unknown reminder action " + action);
+            return false;
+        }
+
+        store.edit().putString(PENDING_PREFIX + id, changes.toString()).apply();
+        return WidgetReminders.upsert(context, reminder.toString());
+    }
+
+    /**
+     * The queued changes as a JSON array of objects, each the reminder's id and the fields to
+     * change, e.g. {"id":"...","snoozeUntil":1712496832000}. The queue is emptied.
+     */
+    static synchronized String takePending(Context context) {
+        KeyValueStore store = WidgetUtils.getStore(context);
+        Map<String, String> pending = store.withPrefix(PENDING_PREFIX);
+        JsonArray actions = new JsonArray();
+        KeyValueStore.Editor editor = store.edit();
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            JsonObject changes = readObject(entry.getValue());
+            changes.addProperty("id", entry.getKey().substring(PENDING_PREFIX.length()));
+            actions.add(changes);
+            editor.remove(entry.getKey());
+        }
+        editor.commit();
+        return actions.toString();
+    }
+
+    /**
+     * The reminder with any change still queued for it laid over it, or {@code data} itself if
+     * there is none. The app sends the widget its own copy of the reminders whenever they change,
+     * and until it has taken the queue that copy does not know about the taps yet; without this
+     * the next notification going off would bring back the row that was just snoozed or done.
+     *
+     * Not synchronized: it only reads the store, and is called with WidgetReminders held, which
+     * {@link #apply} takes after this class.
+     */
+    static String withPending(KeyValueStore store, String id, String data) {
+        String pending = store.getString(PENDING_PREFIX + id);
+        if (pending == null) return data;
+        JsonObject reminder;
+        try {
+            reminder = JsonParser.parseString(data).getAsJsonObject();
+        } catch (RuntimeException e) {
+            return data;
+        }
+        for (Map.Entry<String, JsonElement> change : readObject(pending).entrySet()) {
+            reminder.add(change.getKey(), change.getValue());
+        }
+        return reminder.toString();
+    }
+
+    /**
+     * Whether the reminder goes off more than once, so cannot be marked done from the widget.
+     */
+    static boolean isRepeating(Reminder reminder) {
+        return "repeat".equals(reminder.getMode());
+    }
+
+    private static boolean isRepeating(JsonObject reminder) {
+        JsonElement mode = reminder.get("mode");
+        return mode != null && mode.isJsonPrimitive() && "repeat".equals(mode.getAsString());
+    }
+
+    /**
+     * @return whether it changed.
+     */
+    static boolean setSnoozeMinutes(Context context, int minutes) {
+        KeyValueStore store = WidgetUtils.getStore(context);
+        String value = String.valueOf(minutes);
+        if (value.equals(store.getString(SNOOZE_MINUTES_KEY))) return false;
+        store.edit().putString(SNOOZE_MINUTES_KEY, value).apply();
+        return true;
+    }
+
+    private static int getSnoozeMinutes(Context context) {
+        String value = WidgetUtils.getStore(context).getString(SNOOZE_MINUTES_KEY);
+        try {
+            return value == null ? DEFAULT_SNOOZE_MINUTES : Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return DEFAULT_SNOOZE_MINUTES;
+        }
+    }
+
+    private static JsonObject readObject(String json) {
+        if (json == null) return new JsonObject();
+        try {
+            JsonElement element = JsonParser.parseString(json);
+            return element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+        } catch (RuntimeException e) {
+            return new JsonObject();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.streetwriters.notesnook;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+import com.streetwriters.notesnook.storage.KeyValueStore;
+
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TimeZone;
+
+/**
+ * Labels reminder rows ("Upcoming: Today, 05:00 PM") from the raw trigger time.
+ *
+ * The app used to send every reminder with its time already formatted three ways, which made
+ * each stored reminder bigger and still left the day ("Today", "Tomorrow") to be worked out
+ * here on every row with a couple of fresh Calendars. Instead, everything a label can depend on
+ * is set up once per day: the midnights around today, the label templates, and the date and time
+ * formatters in the user's chosen format. Labelling a row is then a few comparisons and appending
+ * into reused buffers, and the label string itself is the only allocation.
+ *
+ * One instance is shared by every row and widget until the day, timezone, locale or formats
+ * change; {@link #get} checks each time and builds a new one when needed.
+ */
+final class ReminderLabels {
+    private static final String TAG = "ReminderLabels";
+
+    /**
+     * The app's date format, in its own (dayjs) notation, e.g. "DD-MM-YYYY" or "MMM D, YYYY".
+     */
+    static final String DATE_FORMAT_KEY = "reminderDateFormat";
+    /**
+     * The app's time format, "12-hour" or "24-hour".
+     */
+    static final String TIME_FORMAT_KEY = "reminderTimeFormat";
+
+    private static final String PLACEHOLDER = "%1$s";
+
+    private static ReminderLabels current;
+
+    private final Locale locale;
+    private final TimeZone timeZone;
+    private final String dateFormatSetting;
+    private final String timeFormatSetting;
+
+    private final long startOfYesterday;
+    private final long startOfToday;
+    private final long startOfTomorrow;
+    private final long startOfDayAfter;
+    private final long startOfThirdDay;
+
+    private final String ongoing;
+    private final Template snoozedUntil;
+    private final Template today;
+    private final Template tomorrow;
+    private final Template yesterday;
+    private final Template upcoming;
+    private final Template last;
+
+    private final DateFormat dateFormat;
+    private final DateFormat timeFormat;
+
+    // Reused by every label; guarded by the instance.
+    private final StringBuilder label = new StringBuilder();
+    private final StringBuffer formatted = new StringBuffer();
+    private final Date date = new Date();
+    private final FieldPosition position = new FieldPosition(0);
+
+    /**
+     * A string resource split around its one argument, so it can be filled in by appending.
+     */
+    private static final class Template {
+        final String prefix;
+        final String suffix;
+
+        Template(String template) {
+            int index = template.indexOf(PLACEHOLDER);
+            if (index < 0) {
+                prefix = template + " ";
+                suffix = "";
+            } else {
+                prefix = template.substring(0, index);
+                suffix = template.substring(index + PLACEHOLDER.length());
+            }
+        }
+    }
+
+    private ReminderLabels(Context context, long now, Locale locale, TimeZone timeZone,
+                           String dateFormatSetting, String timeFormatSetting) {
+        this.locale = locale;
+        this.timeZone = timeZone;
+        this.dateFormatSetting = dateFormatSetting;
+        this.timeFormatSetting = timeFormatSetting;
+
+        // Midnights are stepped with the calendar rather than by adding a day's worth of
+        // milliseconds, so they stay right across a DST change.
+        Calendar calendar = Calendar.getInstance(timeZone, locale);
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        startOfToday = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, -1);
+        startOfYesterday = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 2);
+        startOfTomorrow = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        startOfDayAfter = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        startOfThirdDay = calendar.getTimeInMillis();
+
+        ongoing = context.getString(R.string.reminder_ongoing);
+        snoozedUntil = new Template(context.getString(R.string.reminder_snoozed_until));
+        today = new Template(context.getString(R.string.reminder_today));
+        tomorrow = new Template(context.getString(R.string.reminder_tomorrow));
+        yesterday = new Template(context.getString(R.string.reminder_yesterday));
+        upcoming = new Template(context.getString(R.string.reminder_upcoming));
+        last = new Template(context.getString(R.string.reminder_last));
+
+        DateFormat dateFormat = createFormat(toPattern(dateFormatSetting), locale, timeZone);
+        if (dateFormat == null) {
+            dateFormat = android.text.format.DateFormat.getMediumDateFormat(context);
+            dateFormat.setTimeZone(timeZone);
+        }
+        this.dateFormat = dateFormat;
+
+        DateFormat timeFormat = createFormat(
+                "24-hour".equals(timeFormatSetting) ? "HH:mm"
+                        : "12-hour".equals(timeFormatSetting) ? "hh:mm a" : null,
+                locale, timeZone);
+        if (timeFormat == null) {
+            timeFormat = android.text.format.DateFormat.getTimeFormat(context);
+            timeFormat.setTimeZone(timeZone);
+        }
+        this.timeFormat = timeFormat;
+    }
+
+    /**
+     * The labels for {@code now}, built again only if the day or anything else they depend on has
+     * changed since the last call.
+     */
+    static synchronized ReminderLabels get(Context context, long now) {
+        KeyValueStore store = WidgetUtils.getStore(context);
+        String dateFormatSetting = store.getString(DATE_FORMAT_KEY);
+        String timeFormatSetting = store.getString(TIME_FORMAT_KEY);
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+
+        ReminderLabels labels = current;
+        if (labels == null
+                || now < labels.startOfToday || now >= labels.startOfTomorrow
+                || !labels.locale.equals(locale)
+                || !labels.timeZone.hasSameRules(timeZone)
+                || !Objects.equals(labels.dateFormatSetting, dateFormatSetting)
+                || !Objects.equals(labels.timeFormatSetting, timeFormatSetting)) {
+            labels = new ReminderLabels(context, now, locale, timeZone, dateFormatSetting, timeFormatSetting);
+            current = labels;
+        }
+        return labels;
+    }
+
+    /**
+     * Drops the shared labels, for when something they were built from changes without any of the
+     * things {@link #get} checks changing with it, such as the system 12/24-hour setting.
+     */
+    static synchronized void reset() {
+        current = null;
+    }
+
+    /**
+     * Stores the date and time formats the app shows reminders in.
+     *
+     * @return whether either changed.
+     */
+    static boolean setFormats(Context context, String dateFormat, String timeFormat) {
+        KeyValueStore store = WidgetUtils.getStore(context);
+        if (Objects.equals(dateFormat, store.getString(DATE_FORMAT_KEY))
+                && Objects.equals(timeFormat, store.getString(TIME_FORMAT_KEY))) {
+            return false;
+        }
+        store.edit()
+                .putString(DATE_FORMAT_KEY, dateFormat)
+                .putString(TIME_FORMAT_KEY, timeFormat)
+                .apply();
+        return true;
+    }
+
+    /**
+     * The label shown under a reminder, for its next occurrence if it repeats. Falls back to the
+     * pre-formatted string for reminders written by an older version of the app without a time.
+     */
+    synchronized String format(Reminder reminder, long now) {
+        long triggerDate = RecurrenceEngine.getTriggerDate(reminder, now);
+        if (triggerDate <= 0) return reminder.getFormattedTime();
+
+        if ("permanent".equals(reminder.getMode())) return ongoing;
+
+        label.setLength(0);
+
+        if (reminder.getSnoozeUntil() > now) {
+            label.append(snoozedUntil.prefix);
+            append(timeFormat, reminder.getSnoozeUntil());
+            label.append(snoozedUntil.suffix);
+            return label.toString();
+        }
+
+        Template outer = triggerDate <= now ? last : upcoming;
+        label.append(outer.prefix);
+        Template day = triggerDate >= startOfYesterday && triggerDate < startOfToday ? yesterday
+                : triggerDate >= startOfToday && triggerDate < startOfTomorrow ? today
+                : triggerDate >= startOfTomorrow && triggerDate < startOfDayAfter ? tomorrow
+                : null;
+        if (day != null) {
+            label.append(day.prefix);
+            append(timeFormat, triggerDate);
+            label.append(day.suffix);
+        } else {
+            append(dateFormat, triggerDate);
+            label.append(' ');
+            append(timeFormat, triggerDate);
+        }
+        label.append(outer.suffix);
+        return label.toString();
+    }
+
+    /**
+     * The next time after {@code now} that {@link #format} would label the reminder differently,
+     * or {@code Long.MAX_VALUE} if it never will: the snooze ending, the reminder going off, or
+     * midnight moving it between "Tomorrow", "Today", "Yesterday" and a plain date.
+     */
+    long getNextLabelChange(Reminder reminder, long now) {
+        long triggerDate = RecurrenceEngine.getTriggerDate(reminder, now);
+        if (triggerDate <= 0) return Long.MAX_VALUE;
+        if ("permanent".equals(reminder.getMode())) return Long.MAX_VALUE;
+        if (reminder.getSnoozeUntil() > now) return reminder.getSnoozeUntil();
+
+        long next = triggerDate > now ? triggerDate : Long.MAX_VALUE;
+        // Anything from yesterday to the day after tomorrow is relabelled at midnight; the rest
+        // only reads as a plain date either side of it.
+        if (triggerDate >= startOfYesterday && triggerDate < startOfThirdDay) {
+            next = Math.min(next, startOfTomorrow);
+        }
+        return next;
+    }
+
+    private void append(DateFormat format, long time) {
+        date.setTime(time);
+        formatted.setLength(0);
+        format.format(date, formatted, position);
+        label.append(formatted);
+    }
+
+    /**
+     * Turns one of the app's date formats into the equivalent {@link SimpleDateFormat} pattern.
+     * They only differ in the case of the year, day of month and AM/PM letters.
+     */
+    static String toPattern(String dateFormat) {
+        if (dateFormat == null || dateFormat.isEmpty()) return null;
+        return dateFormat.replace('Y', 'y').replace('D', 'd').replace('A', 'a');
+    }
+
+    private static DateFormat createFormat(String pattern, Locale locale, TimeZone timeZone) {
+        if (pattern == null) return null;
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, locale);
+            format.setTimeZone(timeZone);
+            return format;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unsupported date format: " + pattern, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.streetwriters.notesnook;
+
+import android.util.Log;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index over the stored reminders that lets the widget find what is visible right now without
+ * parsing, or even looking at, the reminders that are not.
+ *
+ * Every reminder that can ever be shown is given the time it stops being visible,
+ * {@link WidgetUtils#getVisibleUntil}, and filed under one of three sections:
+ * <ul>
+ *   <li>recurring: anything that is not one-shot, visible until it is disabled, ordered by when it
+ *   next goes off. That time is worked out here by {@link RecurrenceEngine} and moved on as
+ *   occurrences go by, so it does not depend on the app having run since. While a repeating
+ *   reminder is snoozed it goes off when the snooze ends instead, as the app has it;</li>
+ *   <li>snoozed: one-shot reminders that were snoozed, visible until the later of the snooze
+ *   ending and the recently passed window running out;</li>
+ *   <li>one-shot: the rest, visible until the recently passed window runs out.</li>
+ * </ul>
+ * The last two are ordered by that time, so what is visible at any moment is a suffix found by
+ * binary search. Disabled reminders are left out altogether.
+ *
+ * The index only holds ids and times. It is kept up to date one reminder at a time as reminders
+ * change, and saved by {@link WidgetReminders} next to the reminders themselves, one entry per
+ * reminder so a change to one only writes that one, and so it does not have to be rebuilt when
+ * the process starts. Only the reminders that end up on screen are ever read back, however many
+ * the user has.
+ *
+ * Not thread safe; {@link WidgetReminders} guards it.
+ */
+final class ReminderTimeline {
+    private static final String TAG = "ReminderTimeline";
+
+    /**
+     * The version of the saved entries, see {@link #encode(String)}.
+     */
+    static final String VERSION = "5";
+
+    /**
+     * Where one reminder sits in the timeline.
+     */
+    private static final class Entry {
+        final String id;
+        final long trigger;
+        final long visibleUntil;
+        /**
+         * What a recurring entry repeats by, or null if its time is not recomputed here.
+         */
+        final RecurrenceEngine.Rule rule;
+        /**
+         * When a recurring entry's snooze ends, or 0.
+         */
+        final long snoozeUntil;
+
+        Entry(String id, long trigger, long visibleUntil, RecurrenceEngine.Rule rule, long snoozeUntil) {
+            this.id = id;
+            this.trigger = trigger;
+            this.visibleUntil = visibleUntil;
+            this.rule = rule;
+            this.snoozeUntil = snoozeUntil;
+        }
+
+        /**
+         * This entry going off next at the time it is due after {@code now}.
+         */
+        Entry moveOn(long now) {
+            return new Entry(id, next(rule, snoozeUntil, now), visibleUntil, rule, snoozeUntil);
+        }
+    }
+
+    private static final Comparator<Entry> BY_TRIGGER = Comparator.comparingLong(entry -> entry.trigger);
+    private static final Comparator<Entry> BY_VISIBLE_UNTIL = Comparator.comparingLong(entry -> entry.visibleUntil);
+
+    private final List<Entry> recurring = new ArrayList<>();
+    private final List<Entry> snoozed = new ArrayList<>();
+    private final List<Entry> once = new ArrayList<>();
+    private final Map<String, Entry> byId = new HashMap<>();
+
+    /**
+     * Files the reminder under its id, replacing what was there. A reminder that can never be
+     * shown is taken out instead.
+     */
+    void put(String id, Reminder reminder, long now) {
+        remove(id);
+        long visibleUntil = WidgetUtils.getVisibleUntil(reminder);
+        if (visibleUntil == Long.MIN_VALUE) return;
+
+        RecurrenceEngine.Rule rule = visibleUntil == Long.MAX_VALUE ? RecurrenceEngine.Rule.of(reminder) : null;
+        long snoozeUntil = rule != null ? reminder.getSnoozeUntil() : 0;
+        long trigger = rule != null ? next(rule, snoozeUntil, now)
+                : reminder.getTriggerDate() > 0 ? reminder.getTriggerDate() : reminder.getDate();
+        Entry entry = new Entry(id, trigger, visibleUntil, rule, snoozeUntil);
+        if (visibleUntil == Long.MAX_VALUE) insert(recurring, entry, BY_TRIGGER);
+        else if (reminder.getSnoozeUntil() > 0) insert(snoozed, entry, BY_VISIBLE_UNTIL);
+        else insert(once, entry, BY_VISIBLE_UNTIL);
+        byId.put(id, entry);
+    }
+
+    /**
+     * @return whether the reminder was in the timeline.
+     */
+    boolean remove(String id) {
+        Entry entry = byId.remove(id);
+        if (entry == null) return false;
+        if (entry.visibleUntil == Long.MAX_VALUE) recurring.remove(entry);
+        else if (!snoozed.remove(entry)) once.remove(entry);
+        return true;
+    }
+
+    void clear() {
+        recurring.clear();
+        snoozed.clear();
+        once.clear();
+        byId.clear();
+    }
+
+    /**
+     * Whether there is any reminder that could ever be shown.
+     */
+    boolean isEmpty() {
+        return byId.isEmpty();
+    }
+
+    /**
+     * After every entry that sorts the same, so reminders going off at the same time keep the
+     * order they were added in.
+     */
+    private static void insert(List<Entry> section, Entry entry, Comparator<Entry> order) {
+        int low = 0;
+        int high = section.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (order.compare(section.get(mid), entry) <= 0) low = mid + 1;
+            else high = mid;
+        }
+        section.add(low, entry);
+    }
+
+    /**
+     * The ids of the reminders visible at {@code now}, in the order they go off, at most
+     * {@code limit} of them.
+     */
+    List<String> getVisible(long now, int limit) {
+        advance(now);
+        int snoozedFrom = firstVisible(snoozed, now);
+        int onceFrom = firstVisible(once, now);
+
+        // Recurring and one-shot reminders are already in the order they go off. Snoozed ones
+        // are ordered by when they stop being visible, which need not be the same, but there are
+        // only ever a few of them.
+        List<Entry> snoozedVisible = new ArrayList<>(snoozed.subList(snoozedFrom, snoozed.size()));
+        snoozedVisible.sort(BY_TRIGGER);
+
+        List<String> ids = new ArrayList<>();
+        int r = 0;
+        int s = 0;
+        int o = onceFrom;
+        while (ids.size() < limit) {
+            Entry next = null;
+            if (r < recurring.size()) next = recurring.get(r);
+            if (s < snoozedVisible.size() && (next == null || snoozedVisible.get(s).trigger < next.trigger)) {
+                next = snoozedVisible.get(s);
+            }
+            if (o < once.size() && (next == null || once.get(o).trigger < next.trigger)) {
+                next = once.get(o);
+            }
+            if (next == null) break;
+
+            if (r < recurring.size() && next == recurring.get(r)) r++;
+            else if (o < once.size() && next == once.get(o)) o++;
+            else s++;
+            ids.add(next.id);
+        }
+        if (recurring.size() + snoozedVisible.size() + once.size() - onceFrom > limit) {
+            Log.w(TAG, "Widget list truncated to " + limit + " reminders");
+        }
+        return ids;
+    }
+
+    /**
+     * Moves recurring entries whose occurrence has gone by on to their next one. Only the front of
+     * the section can be due, so this touches nothing else until the entries that moved are
+     * merged back in, all at once: after the process was idle, most of the section can be due.
+     */
+    private void advance(long now) {
+        int due = 0;
+        while (due < recurring.size() && recurring.get(due).trigger <= now) due++;
+        List<Entry> moved = null;
+        List<Entry> stayed = null;
+        for (int i = 0; i < due; i++) {
+            Entry entry = recurring.get(i);
+            if (entry.rule == null) {
+                if (stayed != null) stayed.add(entry);
+                continue;
+            }
+            if (moved == null) {
+                moved = new ArrayList<>();
+                stayed = new ArrayList<>(recurring.subList(0, i));
+            }
+            Entry next = entry.moveOn(now);
+            moved.add(next);
+            byId.put(entry.id, next);
+        }
+        if (moved == null) return;
+        moved.sort(BY_TRIGGER);
+        stayed.addAll(recurring.subList(due, recurring.size()));
+
+        // Both are in order; entries that moved go after the ones they tie with, as insert does.
+        recurring.clear();
+        int s = 0;
+        int m = 0;
+        while (s < stayed.size() || m < moved.size()) {
+            if (m == moved.size() || (s < stayed.size() && stayed.get(s).trigger <= moved.get(m).trigger)) {
+                recurring.add(stayed.get(s++));
+            } else {
+                recurring.add(moved.get(m++));
+            }
+        }
+    }
+
+    /**
+     * Works out every recurring entry's next occurrence again, for when the clock or timezone
+     * changed and the ones worked out before can no longer be trusted.
+     *
+     * @return the ids of the entries that now go off at a different time.
+     */
+    List<String> reschedule(long now) {
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < recurring.size(); i++) {
+            Entry entry = recurring.get(i);
+            if (entry.rule == null) continue;
+            Entry moved = entry.moveOn(now);
+            recurring.set(i, moved);
+            byId.put(entry.id, moved);
+            if (moved.trigger != entry.trigger) changed.add(entry.id);
+        }
+        recurring.sort(BY_TRIGGER);
+        return changed;
+    }
+
+    /**
+     * When a recurring reminder goes off next: at the end of its snooze while that is still to
+     * come, otherwise at its next occurrence.
+     */
+    private static long next(RecurrenceEngine.Rule rule, long snoozeUntil, long now) {
+        if (snoozeUntil > now) return snoozeUntil;
+        RecurrenceEngine engine = RecurrenceEngine.getDefault();
+        synchronized (engine) {
+            return engine.next(rule, now);
+        }
+    }
+
+    /**
+     * The next time after {@code now} that a reminder drops out of view, or {@code Long.MAX_VALUE}
+     * if none will. Only ever the first visible entry of the snoozed or one-shot section.
+     */
+    long getNextVisibilityChange(long now) {
+        long next = Long.MAX_VALUE;
+        int snoozedFrom = firstVisible(snoozed, now);
+        if (snoozedFrom < snoozed.size()) next = snoozed.get(snoozedFrom).visibleUntil;
+        int onceFrom = firstVisible(once, now);
+        if (onceFrom < once.size()) next = Math.min(next, once.get(onceFrom).visibleUntil);
+        return next;
+    }
+
+    /**
+     * The first entry still visible at {@code now}, in a section ordered by when they stop being
+     * visible.
+     */
+    private static int firstVisible(List<Entry> section, long now) {
+        int low = 0;
+        int high = section.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (section.get(mid).visibleUntil > now) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * The saved form of one reminder's entry, or null if it is not in the timeline: its section,
+     * the time it goes off, the time it stops being visible, and for recurring entries when their
+     * snooze ends and the rule they repeat by ("-" if none). The id is left to whatever the entry
+     * is saved under. Entries are saved as they were last written; recurring ones that have gone
+     * by since are moved on again when read back.
+     */
+    String encode(String id) {
+        Entry entry = byId.get(id);
+        if (entry == null) return null;
+        boolean isRecurring = entry.visibleUntil == Long.MAX_VALUE;
+        char tag = isRecurring ? 'r' : snoozed.contains(entry) ? 's' : 'o';
+        StringBuilder builder = new StringBuilder();
+        builder.append(tag)
+                .append(' ').append(entry.trigger)
+                .append(' ').append(entry.visibleUntil);
+        if (isRecurring) {
+            builder.append(' ').append(entry.snoozeUntil)
+                    .append(' ').append(entry.rule != null ? entry.rule.encode() : "-");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads back a saved timeline from its entries, keyed by reminder id, or returns null if it
+     * was saved by another version or cannot be read.
+     */
+    static ReminderTimeline decode(String version, Map<String, String> saved) {
+        if (!VERSION.equals(version)) return null;
+        try {
+            ReminderTimeline timeline = new ReminderTimeline();
+            for (Map.Entry<String, String> line : saved.entrySet()) {
+                boolean recurring = line.getValue().startsWith("r ");
+                String[] fields = line.getValue().split(" ", recurring ? 5 : 3);
+                if (fields.length != (recurring ? 5 : 3) || fields[0].length() != 1) return null;
+                RecurrenceEngine.Rule rule = null;
+                if (recurring && !"-".equals(fields[4])) {
+                    rule = RecurrenceEngine.Rule.decode(fields[4]);
+                    if (rule == null) return null;
+                }
+                Entry entry = new Entry(line.getKey(),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]), rule,
+                        recurring ? Long.parseLong(fields[3]) : 0);
+                switch (fields[0].charAt(0)) {
+                    case 'r':
+                        timeline.recurring.add(entry);
+                        break;
+                    case 's':
+                        timeline.snoozed.add(entry);
+                        break;
+                    case 'o':
+                        timeline.once.add(entry);
+                        break;
+                    default:
+                        return null;
+                }
+                timeline.byId.put(entry.id, entry);
+            }
+            timeline.recurring.sort(BY_TRIGGER);
+            timeline.snoozed.sort(BY_VISIBLE_UNTIL);
+            timeline.once.sort(BY_VISIBLE_UNTIL);
+            return timeline;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Could not read the saved reminders timeline", e);
+            return null;
+        }
+    }
+}
@@ -6,56 +6,233 @@ import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.LruCache;
 import android.widget.RemoteViews;
 
 import androidx.core.widget.RemoteViewsCompat;
 
 import com.streetwriters.notesnook.datatypes.Reminder;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ReminderWidgetProvider extends AppWidgetProvider {
     static String NewReminder = "com.streetwriters.notesnook.NewReminder";
     static String OpenReminderId = "com.streetwriters.notesnook.OpenReminderId";
 
+    /**
+     * How big the list of rows may be, parcelled, for it to be sent inline with the update.
+     *
+     * An inline update is one binder transaction, and the binder buffer it goes through is 1MB
+     * shared by everything the process has in flight; the system then passes the same views on to
+     * the launcher. A quarter of that leaves room for both. A list that does not fit is served by
+     * {@link ReminderWidgetService} instead, which hands the launcher rows as it scrolls to them.
+     */
+    private static final int INLINE_BUDGET_BYTES = 256 * 1024;
+
+    /**
+     * What a row is taken to add to the parcelled list until one has been measured: a little over
+     * what a row with a long title and description comes to.
+     */
+    private static final int DEFAULT_ROW_BYTES = 2 * 1024;
+
+    /**
+     * What a row added to the parcelled list the last time one was measured. Picks between inline
+     * and the service by the number of rows before any are built. Guarded by {@link #rows}.
+     */
+    private static int rowBytes = DEFAULT_ROW_BYTES;
+
+    /**
+     * Built rows, keyed by everything that goes into one: the reminder, whether it repeats (which
+     * hides done), its title and description (which also pick the layout), and its label. Most
+     * updates change one row or none, and every reminders widget shows the same rows, so a row is
+     * only built again once something in it changes. Grown to hold every row of the longest list
+     * sent inline, so that a list does not push out its own rows while it is being built.
+     */
+    private static final LruCache<String, RemoteViews> rows = new LruCache<>(64);
+
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        WidgetRefreshScheduler.requestReminders(context, appWidgetIds,
+                WidgetRefreshScheduler.Reason.SYSTEM, goAsync());
+    }
+
+
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        super.onDeleted(context, appWidgetIds);
         for (int appWidgetId : appWidgetIds) {
-            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_reminders);
-            updateAppWidget(context, appWidgetManager, appWidgetId, views);
+            WidgetRenderState.forget(appWidgetId);
+            WidgetDependencies.forget(appWidgetId);
+            WidgetPendingIntents.forget(appWidgetId);
         }
     }
 
+    @Override
+    public void onDisabled(Context context) {
+        super.onDisabled(context);
+        // The last reminders widget is gone, nothing left to redraw.
+        WidgetTransitionAlarm.cancel(context);
+    }
 
     static void updateAppWidget(Context context, AppWidgetManager appWidgetManager, int appWidgetId, RemoteViews views) {
-        Intent listview_intent_template = new Intent(context, MainActivity.class);
-        listview_intent_template.setAction(Intent.ACTION_VIEW);
-        PendingIntent pendingIntent = PendingIntent.getActivity(context, appWidgetId, listview_intent_template, PendingIntent.FLAG_CANCEL_CURRENT | PendingIntent.FLAG_MUTABLE, WidgetUtils.getActivityOptionsBundle());
-        views.setPendingIntentTemplate(R.id.widget_list_view, pendingIntent);
-
-        Intent new_reminder_intent = new Intent(context, MainActivity.class);
-        new_reminder_intent.putExtra(NewReminder, NewReminder);
-        new_reminder_intent.setAction(Intent.ACTION_VIEW);
-        new_reminder_intent.putExtra(RCTNNativeModule.IntentType, "NewReminder");
-        new_reminder_intent.setData(Uri.parse("https://app.notesnook.com/new_reminder"));
-        PendingIntent pendingIntent2 = PendingIntent.getActivity(context, appWidgetId, new_reminder_intent, PendingIntent.FLAG_CANCEL_CURRENT | PendingIntent.FLAG_IMMUTABLE, WidgetUtils.getActivityOptionsBundle());
-        views.setOnClickPendingIntent(R.id.add_button, pendingIntent2);
-
-        // The rows travel with the update itself, so there is no bound service to keep in sync and
-        // nothing to invalidate separately: every update redraws from the current data.
-        List<Reminder> reminders = WidgetUtils.getWidgetReminders(context);
-        RemoteViewsCompat.RemoteCollectionItems.Builder items =
-                new RemoteViewsCompat.RemoteCollectionItems.Builder();
-        for (Reminder reminder : reminders) {
-            items.addItem(getItemId(reminder), WidgetUtils.createReminderItem(context, reminder));
+        // Which rows are shown and how they are labelled both move with the clock, hidden ones
+        // included since setting the clock back can bring them back. With nothing stored at all
+        // the clock cannot change anything.
+        Set<String> dependencies = new HashSet<>();
+        dependencies.add(WidgetDependencies.REMINDERS);
+        if (WidgetUtils.hasStoredReminders(context)) dependencies.add(WidgetDependencies.TIME);
+        WidgetDependencies.record(appWidgetId, dependencies);
+
+        long now = System.currentTimeMillis();
+        List<String> ids = WidgetReminders.getVisibleIds(context, now, Integer.MAX_VALUE);
+        ReminderLabels labels = ReminderLabels.get(context, now);
+
+        // Attaching the rows to a widget writes to them, so rows shared between widgets are only
+        // touched, and sent, by one widget at a time.
+        synchronized (rows) {
+            // Decided by the number of rows, so a list that goes to the service is not built here
+            // at all. The list as built is measured below in case the guess was wrong.
+            int inlineRows = Math.max(1, INLINE_BUDGET_BYTES / rowBytes);
+            boolean inline = ids.size() <= inlineRows;
+            if (inline && ids.size() > rows.maxSize()) rows.resize(ids.size());
+            WidgetUtils.ensureReminderCapacity(Math.min(ids.size(), inlineRows));
+
+            List<Reminder> reminders = new ArrayList<>();
+            List<RemoteViews> built = new ArrayList<>();
+            StringBuilder fingerprint = new StringBuilder();
+            for (String id : ids) {
+                // The service builds its own rows; only the first ones are needed here, for when
+                // they next change.
+                if (!inline && reminders.size() == inlineRows) break;
+                Reminder reminder = WidgetReminders.get(context, id);
+                if (reminder == null) continue;
+                reminders.add(reminder);
+                if (!inline) continue;
+
+                String label = labels.format(reminder, now);
+                String rowKey = reminder.getId() + '\0' + reminder.getMode() + '\0'
+                        + reminder.getTitle() + '\0' + reminder.getDescription() + '\0' + label;
+                RemoteViews row = rows.get(rowKey);
+                if (row == null) {
+                    row = WidgetUtils.createReminderItem(context, reminder, label);
+                    rows.put(rowKey, row);
+                }
+                built.add(row);
+                fingerprint.append(rowKey).append('\n');
+            }
+            // The list is in the order reminders go off, so whatever changes next is among the
+            // first rows even when the rest are left to the service.
+            scheduleNextTransition(context, labels, reminders, now);
+
+            // The rows are a collection the launcher rebuilds as a whole, so there is nothing to
+            // gain from a partial update: either the list is unchanged or it is sent again. A list
+            // served by the service is reloaded by the launcher instead.
+            WidgetRenderState.Update update = WidgetRenderState.update(appWidgetId,
+                    inline ? fingerprint.toString() : "service", null);
+            if (update == WidgetRenderState.Update.NONE) {
+                if (!inline) appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.widget_list_view);
+                return;
+            }
+
+            RemoteViewsCompat.RemoteCollectionItems items = null;
+            if (inline) {
+                RemoteViewsCompat.RemoteCollectionItems.Builder builder =
+                        new RemoteViewsCompat.RemoteCollectionItems.Builder();
+                for (int i = 0; i < built.size(); i++) {
+                    builder.addItem(getItemId(reminders.get(i)), built.get(i));
+                }
+                // Two, because a reminder without a description uses the compact row layout.
+                builder.setViewTypeCount(2);
+                builder.setHasStableIds(true);
+                items = builder.build();
+                if (!fitsInline(context, views, items, built.size())) {
+                    items = null;
+                    inline = false;
+                    WidgetRenderState.update(appWidgetId, "service", null);
+                }
+            }
+
+            // Rows fill this in to open their reminder, or to snooze it or mark it done.
+            Intent listview_intent_template = new Intent(context, ReminderActionActivity.class);
+            listview_intent_template.setAction(Intent.ACTION_VIEW);
+            PendingIntent pendingIntent = WidgetPendingIntents.getActivity(context, appWidgetId, "rows", listview_intent_template, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+            views.setPendingIntentTemplate(R.id.widget_list_view, pendingIntent);
+
+            Intent new_reminder_intent = new Intent(context, MainActivity.class);
+            new_reminder_intent.putExtra(NewReminder, NewReminder);
+            new_reminder_intent.setAction(Intent.ACTION_VIEW);
+            new_reminder_intent.putExtra(RCTNNativeModule.IntentType, "NewReminder");
+            new_reminder_intent.setData(Uri.parse("https://app.notesnook.com/new_reminder"));
+            PendingIntent pendingIntent2 = WidgetPendingIntents.getActivity(context, appWidgetId, "new_reminder", new_reminder_intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+            views.setOnClickPendingIntent(R.id.add_button, pendingIntent2);
+
+            if (inline) {
+                // The rows travel with the update itself, so there is no bound service to keep in
+                // sync and nothing to invalidate separately: every update redraws from the current
+                // data.
+                RemoteViewsCompat.setRemoteAdapter(context, views, appWidgetId, R.id.widget_list_view, items);
+            } else {
+                views.setRemoteAdapter(R.id.widget_list_view, ReminderWidgetService.getIntent(context, appWidgetId));
+            }
+            views.setEmptyView(R.id.widget_list_view, R.id.empty_view);
+            try {
+                appWidgetManager.updateAppWidget(appWidgetId, views);
+                // The launcher keeps its factory between updates.
+                if (!inline) appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.widget_list_view);
+            } catch (RuntimeException e) {
+                // The widget may not show what we recorded, so do not skip the next redraw.
+                WidgetRenderState.forget(appWidgetId);
+                WidgetDependencies.forget(appWidgetId);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Whether the rows, as the list they are sent in, come within the inline budget. Measures the
+     * list on its own in an otherwise empty copy of the widget's layout, which also counts what
+     * the rows share only once, and keeps what a row came to for picking the next time.
+     *
+     * Before Android 12 the compat library hands the rows to the launcher through its own service
+     * rather than in the update, so there they always fit.
+     */
+    private static boolean fitsInline(Context context, RemoteViews views,
+                                      RemoteViewsCompat.RemoteCollectionItems items, int count) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) return true;
+        RemoteViews probe = new RemoteViews(context.getPackageName(), views.getLayoutId());
+        int empty = parcelledSize(probe);
+        RemoteViewsCompat.setRemoteAdapter(context, probe, 0, R.id.widget_list_view, items);
+        int bytes = parcelledSize(probe) - empty;
+        if (count > 0) rowBytes = Math.max(1, bytes / count);
+        return bytes <= INLINE_BUDGET_BYTES;
+    }
+
+    private static int parcelledSize(RemoteViews views) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            views.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
         }
-        // Two, because a reminder without a description uses the compact row layout.
-        items.setViewTypeCount(2);
-        items.setHasStableIds(true);
+    }
 
-        RemoteViewsCompat.setRemoteAdapter(context, views, appWidgetId, R.id.widget_list_view, items.build());
-        views.setEmptyView(R.id.widget_list_view, R.id.empty_view);
-        appWidgetManager.updateAppWidget(appWidgetId, views);
+    /**
+     * Sets up the redraw for the next time a row's label changes or a reminder drops out of view.
+     * Done on every draw, skipped or not, since the clock moving is what this is about.
+     */
+    private static void scheduleNextTransition(Context context, ReminderLabels labels,
+                                               List<Reminder> reminders, long now) {
+        long next = WidgetReminders.getNextVisibilityChange(context, now);
+        for (Reminder reminder : reminders) {
+            next = Math.min(next, labels.getNextLabelChange(reminder, now));
+        }
+        WidgetTransitionAlarm.schedule(context, next);
     }
 
     /**
@@ -0,0 +1,98 @@
+package com.streetwriters.notesnook;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Serves the rows of a reminders list too large to send with the widget update, see
+ * {@link ReminderWidgetProvider}. The launcher asks for rows as they scroll into view, so only
+ * those are read, parsed and built, however long the list is.
+ */
+public class ReminderWidgetService extends RemoteViewsService {
+
+    static Intent getIntent(Context context, int appWidgetId) {
+        Intent intent = new Intent(context, ReminderWidgetService.class);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        // Extras are ignored when intents are compared, so without this every widget would be
+        // bound to the first widget's factory.
+        intent.setData(Uri.parse(intent.toUri(Intent.URI_INTENT_SCHEME)));
+        return intent;
+    }
+
+    @Override
+    public RemoteViewsFactory onGetViewFactory(Intent intent) {
+        return new Factory(getApplicationContext());
+    }
+
+    private static final class Factory implements RemoteViewsFactory {
+        private final Context context;
+        /**
+         * The visible reminders as of the last reload. Only touched on the binder thread the
+         * launcher calls in on.
+         */
+        private List<String> ids = Collections.emptyList();
+
+        Factory(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public void onCreate() {
+        }
+
+        @Override
+        public void onDataSetChanged() {
+            ids = WidgetReminders.getVisibleIds(context, System.currentTimeMillis(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void onDestroy() {
+            ids = Collections.emptyList();
+        }
+
+        @Override
+        public int getCount() {
+            return ids.size();
+        }
+
+        @Override
+        public RemoteViews getViewAt(int position) {
+            Reminder reminder = position < ids.size() ? WidgetReminders.get(context, ids.get(position)) : null;
+            // Removed since the last reload; the launcher shows its loading row until the next.
+            if (reminder == null) return null;
+            long now = System.currentTimeMillis();
+            return WidgetUtils.createReminderItem(context, reminder,
+                    ReminderLabels.get(context, now).format(reminder, now));
+        }
+
+        @Override
+        public RemoteViews getLoadingView() {
+            return null;
+        }
+
+        @Override
+        public int getViewTypeCount() {
+            // Two, because a reminder without a description uses the compact row layout.
+            return 2;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position < ids.size() ? ids.get(position).hashCode() : position;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+    }
+}
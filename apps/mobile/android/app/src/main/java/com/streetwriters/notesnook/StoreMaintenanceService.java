@@ -0,0 +1,90 @@
+package com.streetwriters.notesnook;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import com.streetwriters.notesnook.storage.KeyValueStore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Housekeeping for the key-value stores: drops expired keys and the notes of widgets that no
+ * longer exist, then compacts what is left.
+ *
+ * Nothing else shrinks a store, so without this every key ever written stays in memory and is read
+ * back on every cold start. It runs at most once a day, while the device is idle or charging,
+ * so the user never waits on it.
+ */
+public class StoreMaintenanceService extends JobService {
+    private static final String TAG = "StoreMaintenance";
+
+    private static final long INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Schedules both jobs unless they already are. JobScheduler can only combine constraints with
+     * "and", so idle and charging are two jobs; whichever runs first does the work, and the other
+     * finds nothing left to do. Rescheduling a periodic job restarts its interval, so doing that
+     * on every app start could keep pushing it back indefinitely.
+     *
+     * Called as the app starts, so the calls into the system server this takes are made on a
+     * thread of their own rather than holding up the first screen.
+     */
+    static void schedule(Context context) {
+        Context appContext = context.getApplicationContext();
+        new Thread(() -> scheduleNow(appContext), TAG).start();
+    }
+
+    private static void scheduleNow(Context context) {
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        if (scheduler == null) return;
+
+        ComponentName service = new ComponentName(context, StoreMaintenanceService.class);
+        if (scheduler.getPendingJob(JobIds.STORE_MAINTENANCE_IDLE) == null) {
+            scheduler.schedule(new JobInfo.Builder(JobIds.STORE_MAINTENANCE_IDLE, service)
+                    .setRequiresDeviceIdle(true)
+                    .setPeriodic(INTERVAL_MS)
+                    .setPersisted(true)
+                    .build());
+        }
+        if (scheduler.getPendingJob(JobIds.STORE_MAINTENANCE_CHARGING) == null) {
+            scheduler.schedule(new JobInfo.Builder(JobIds.STORE_MAINTENANCE_CHARGING, service)
+                    .setRequiresCharging(true)
+                    .setPeriodic(INTERVAL_MS)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        new Thread(() -> {
+            run(getApplicationContext());
+            jobFinished(params, false);
+        }, TAG).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Each step leaves the stores consistent, and the next run picks up the rest.
+        return false;
+    }
+
+    private static void run(Context context) {
+        try {
+            WidgetUtils.removeOrphanedNotes(context);
+            for (KeyValueStore store : KeyValueStore.openAll(context)) {
+                int purged = store.purgeExpired();
+                store.compact();
+                if (purged > 0) Log.i(TAG, "Purged " + purged + " expired keys from " + store.getName());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Store maintenance failed", e);
+        }
+    }
+}
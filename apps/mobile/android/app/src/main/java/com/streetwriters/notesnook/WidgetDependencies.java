@@ -0,0 +1,86 @@
+package com.streetwriters.notesnook;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What each widget's last render was drawn from, so a change only redraws the widgets that
+ * actually show something that depends on it.
+ *
+ * A dependency is a plain string: {@link #TIME} for anything that changes as the clock moves,
+ * {@link #REMINDERS} for the stored reminders list, and {@link #note(String)} for one stored
+ * note. A clock change then redraws the reminders widgets but leaves note previews alone, and a
+ * note edit only redraws the widgets showing that note.
+ *
+ * Only lives as long as the process. A widget that has not been drawn since the process started
+ * has no record; {@link WidgetRefreshScheduler} works out separately which of those a change may
+ * affect.
+ */
+final class WidgetDependencies {
+    static final String TIME = "time";
+    static final String REMINDERS = "reminders";
+
+    private static final String NOTE_PREFIX = "note:";
+
+    private static final Map<Integer, Set<String>> byWidget = new HashMap<>();
+    private static final Map<String, Set<Integer>> byDependency = new HashMap<>();
+
+    private WidgetDependencies() {
+    }
+
+    static String note(String noteId) {
+        return NOTE_PREFIX + noteId;
+    }
+
+    /**
+     * The note a {@link #note(String)} dependency stands for, or null for any other dependency.
+     */
+    static String getNoteId(String dependency) {
+        return dependency.startsWith(NOTE_PREFIX) ? dependency.substring(NOTE_PREFIX.length()) : null;
+    }
+
+    /**
+     * Replaces what the widget depends on with what its latest render used.
+     */
+    static synchronized void record(int appWidgetId, Set<String> dependencies) {
+        forget(appWidgetId);
+        byWidget.put(appWidgetId, dependencies);
+        for (String dependency : dependencies) {
+            Set<Integer> widgets = byDependency.get(dependency);
+            if (widgets == null) {
+                widgets = new HashSet<>();
+                byDependency.put(dependency, widgets);
+            }
+            widgets.add(appWidgetId);
+        }
+    }
+
+    static synchronized void forget(int appWidgetId) {
+        Set<String> dependencies = byWidget.remove(appWidgetId);
+        if (dependencies == null) return;
+        for (String dependency : dependencies) {
+            Set<Integer> widgets = byDependency.get(dependency);
+            if (widgets == null) continue;
+            widgets.remove(appWidgetId);
+            if (widgets.isEmpty()) byDependency.remove(dependency);
+        }
+    }
+
+    /**
+     * Whether the widget has been drawn since the process started, and so has a record at all.
+     */
+    static synchronized boolean isRecorded(int appWidgetId) {
+        return byWidget.containsKey(appWidgetId);
+    }
+
+    /**
+     * The widgets whose last render used the dependency.
+     */
+    static synchronized Set<Integer> getDependents(String dependency) {
+        Set<Integer> widgets = byDependency.get(dependency);
+        return widgets == null ? Collections.emptySet() : new HashSet<>(widgets);
+    }
+}
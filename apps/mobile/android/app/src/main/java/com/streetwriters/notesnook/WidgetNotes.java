@@ -0,0 +1,306 @@
+package com.streetwriters.notesnook;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.streetwriters.notesnook.datatypes.Note;
+import com.streetwriters.notesnook.storage.KeyValueStore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The notes shown by note preview widgets, stored once per note rather than once per widget.
+ *
+ * The store holds two kinds of keys:
+ * <pre>
+ *   widget:&lt;widget id&gt;  the id of the note the widget shows
+ *   note:&lt;note id&gt;      the note itself, as JSON
+ * </pre>
+ * so a note pinned in three widgets is written, and rewritten on every edit, once. Which widgets
+ * show a note is kept in memory as well, built from the widget keys the first time it is needed.
+ * Finding the widgets to update after an edit is then a map lookup, instead of parsing every
+ * stored note to compare ids.
+ *
+ * Widgets used to store the note JSON directly under their numeric id. Those keys are moved over
+ * when the index is first built.
+ *
+ * Every change to these keys goes through here, so the index cannot drift from the store.
+ */
+class WidgetNotes {
+    private static final String WIDGET_PREFIX = "widget:";
+    private static final String NOTE_PREFIX = "note:";
+
+    /**
+     * The widgets showing each note. Null until first used.
+     */
+    private static Map<String, Set<Integer>> widgetsByNote;
+    /**
+     * The note each widget shows. Null until first used.
+     */
+    private static Map<Integer, String> noteByWidget;
+
+    private WidgetNotes() {
+    }
+
+    /**
+     * The stored JSON of the note the widget shows, or null if it has none.
+     */
+    static synchronized String getNoteData(Context context, int widgetId) {
+        ensureIndex(context);
+        String noteId = noteByWidget.get(widgetId);
+        return noteId == null ? null : WidgetUtils.getStore(context).getString(NOTE_PREFIX + noteId);
+    }
+
+    static Note getNote(Context context, int widgetId) {
+        return WidgetUtils.parseNote(getNoteData(context, widgetId));
+    }
+
+    /**
+     * The ids of every note shown by at least one widget.
+     */
+    static synchronized Set<String> getNoteIds(Context context) {
+        ensureIndex(context);
+        return new HashSet<>(widgetsByNote.keySet());
+    }
+
+    /**
+     * The widgets showing the note. Empty if there are none.
+     */
+    static synchronized Set<Integer> getWidgetIds(Context context, String noteId) {
+        ensureIndex(context);
+        Set<Integer> widgetIds = widgetsByNote.get(noteId);
+        return widgetIds == null ? Collections.emptySet() : new HashSet<>(widgetIds);
+    }
+
+    /**
+     * Points the widget at the note, storing the note if no other widget shows it yet.
+     */
+    static synchronized void setWidgetNote(Context context, int widgetId, String noteId, String data) {
+        ensureIndex(context);
+        KeyValueStore.Editor edit = WidgetUtils.getStore(context).edit();
+        unlink(edit, widgetId);
+        link(edit, widgetId, noteId);
+        edit.putString(NOTE_PREFIX + noteId, data);
+        edit.apply();
+    }
+
+    /**
+     * Replaces the stored copy of a note, if any widget shows it.
+     *
+     * @return the widgets showing it, which need to be redrawn.
+     */
+    static synchronized Set<Integer> updateNote(Context context, String noteId, String data) {
+        ensureIndex(context);
+        Set<Integer> widgetIds = widgetsByNote.get(noteId);
+        if (widgetIds == null) return Collections.emptySet();
+        WidgetUtils.getStore(context).edit().putString(NOTE_PREFIX + noteId, data).apply();
+        return new HashSet<>(widgetIds);
+    }
+
+    /**
+     * Updates many notes in one write.
+     *
+     * @param notes   the full JSON of each note, by note id.
+     * @param patches JSON objects holding only the fields of a note that changed, by note id. They
+     *                are merged into the stored note, so a sync that only touched titles and
+     *                headlines does not have to send every note whole.
+     * @return every widget showing one of the notes, each of which needs to be redrawn once.
+     */
+    static synchronized Set<Integer> updateNotes(Context context, Map<String, String> notes,
+                                                 Map<String, String> patches) {
+        ensureIndex(context);
+        KeyValueStore store = WidgetUtils.getStore(context);
+        KeyValueStore.Editor edit = store.edit();
+        Set<Integer> affected = new LinkedHashSet<>();
+
+        for (Map.Entry<String, String> entry : notes.entrySet()) {
+            Set<Integer> widgetIds = widgetsByNote.get(entry.getKey());
+            if (widgetIds == null) continue;
+            edit.putString(NOTE_PREFIX + entry.getKey(), entry.getValue());
+            affected.addAll(widgetIds);
+        }
+        for (Map.Entry<String, String> entry : patches.entrySet()) {
+            Set<Integer> widgetIds = widgetsByNote.get(entry.getKey());
+            if (widgetIds == null || notes.containsKey(entry.getKey())) continue;
+            String merged = merge(store.getString(NOTE_PREFIX + entry.getKey()), entry.getValue());
+            if (merged == null) continue;
+            edit.putString(NOTE_PREFIX + entry.getKey(), merged);
+            affected.addAll(widgetIds);
+        }
+        edit.apply();
+        return affected;
+    }
+
+    /**
+     * The stored note with the patch's fields written over it, or null if either cannot be read.
+     */
+    private static String merge(String stored, String patch) {
+        if (stored == null) return null;
+        try {
+            JsonObject note = JsonParser.parseString(stored).getAsJsonObject();
+            for (Map.Entry<String, JsonElement> field : JsonParser.parseString(patch).getAsJsonObject().entrySet()) {
+                note.add(field.getKey(), field.getValue());
+            }
+            return note.toString();
+        } catch (RuntimeException e) {
+            Log.e("NotePreviewWidget", "Could not apply a note patch", e);
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the widgets, and any note that no remaining widget shows.
+     */
+    static synchronized void removeWidgets(Context context, Collection<Integer> widgetIds) {
+        ensureIndex(context);
+        KeyValueStore.Editor edit = WidgetUtils.getStore(context).edit();
+        for (int widgetId : widgetIds) {
+            unlink(edit, widgetId);
+        }
+        edit.apply();
+    }
+
+    /**
+     * Forgets every widget that is not in {@code liveWidgetIds}.
+     */
+    static synchronized void retainWidgets(Context context, int[] liveWidgetIds) {
+        ensureIndex(context);
+        Set<Integer> gone = new HashSet<>(noteByWidget.keySet());
+        for (int widgetId : liveWidgetIds) gone.remove(widgetId);
+        if (!gone.isEmpty()) removeWidgets(context, gone);
+    }
+
+    /**
+     * Moves notes over to the ids the system gave the widgets when restoring them. Works out
+     * every mapping before changing any, since an old id can be the new id of another widget.
+     */
+    static synchronized void moveWidgets(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
+        ensureIndex(context);
+        int count = Math.min(oldWidgetIds.length, newWidgetIds.length);
+        String[] noteIds = new String[count];
+        Set<Integer> newIds = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            noteIds[i] = noteByWidget.get(oldWidgetIds[i]);
+            newIds.add(newWidgetIds[i]);
+        }
+
+        KeyValueStore.Editor edit = WidgetUtils.getStore(context).edit();
+        Set<String> affected = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            if (oldWidgetIds[i] == newWidgetIds[i]) continue;
+            affected.add(unlinkWidget(edit, newWidgetIds[i]));
+            if (noteIds[i] != null) link(edit, newWidgetIds[i], noteIds[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            if (!newIds.contains(oldWidgetIds[i])) affected.add(unlinkWidget(edit, oldWidgetIds[i]));
+        }
+        // Only now that every widget is linked again is it clear which notes nothing shows.
+        for (String noteId : affected) {
+            if (noteId != null && !widgetsByNote.containsKey(noteId)) edit.remove(NOTE_PREFIX + noteId);
+        }
+        edit.apply();
+    }
+
+    private static void link(KeyValueStore.Editor edit, int widgetId, String noteId) {
+        noteByWidget.put(widgetId, noteId);
+        Set<Integer> widgetIds = widgetsByNote.get(noteId);
+        if (widgetIds == null) {
+            widgetIds = new LinkedHashSet<>();
+            widgetsByNote.put(noteId, widgetIds);
+        }
+        widgetIds.add(widgetId);
+        edit.putString(WIDGET_PREFIX + widgetId, noteId);
+    }
+
+    /**
+     * Removes the widget's mapping, and the note it showed if that was the last widget showing it.
+     */
+    private static void unlink(KeyValueStore.Editor edit, int widgetId) {
+        String noteId = unlinkWidget(edit, widgetId);
+        if (noteId != null && !widgetsByNote.containsKey(noteId)) {
+            edit.remove(NOTE_PREFIX + noteId);
+        }
+    }
+
+    /**
+     * Removes the widget's mapping but leaves the note in place.
+     *
+     * @return the note the widget showed, if any.
+     */
+    private static String unlinkWidget(KeyValueStore.Editor edit, int widgetId) {
+        edit.remove(WIDGET_PREFIX + widgetId);
+        String noteId = noteByWidget.remove(widgetId);
+        if (noteId == null) return null;
+
+        Set<Integer> widgetIds = widgetsByNote.get(noteId);
+        if (widgetIds != null) {
+            widgetIds.remove(widgetId);
+            if (widgetIds.isEmpty()) widgetsByNote.remove(noteId);
+        }
+        return noteId;
+    }
+
+    private static void ensureIndex(Context context) {
+        if (widgetsByNote != null) return;
+        widgetsByNote = new HashMap<>();
+        noteByWidget = new HashMap<>();
+
+        KeyValueStore store = WidgetUtils.getStore(context);
+        for (Map.Entry<String, String> entry : store.withPrefix(WIDGET_PREFIX).entrySet()) {
+            Integer widgetId = parseWidgetId(entry.getKey().substring(WIDGET_PREFIX.length()));
+            if (widgetId == null) continue;
+            noteByWidget.put(widgetId, entry.getValue());
+            Set<Integer> widgetIds = widgetsByNote.get(entry.getValue());
+            if (widgetIds == null) {
+                widgetIds = new LinkedHashSet<>();
+                widgetsByNote.put(entry.getValue(), widgetIds);
+            }
+            widgetIds.add(widgetId);
+        }
+        migrateLegacyNotes(store);
+    }
+
+    /**
+     * Moves notes stored under a bare widget id over to the current layout. The only time stored
+     * notes get parsed here, and only the first time the app runs with this layout.
+     */
+    private static void migrateLegacyNotes(KeyValueStore store) {
+        // Widget ids are the only keys starting with a digit, and ':' sorts right after '9'.
+        Map<String, String> legacy = store.range("0", ":");
+        if (legacy.isEmpty()) return;
+
+        KeyValueStore.Editor edit = store.edit();
+        for (Map.Entry<String, String> entry : legacy.entrySet()) {
+            Integer widgetId = parseWidgetId(entry.getKey());
+            if (widgetId == null) continue;
+            edit.remove(entry.getKey());
+
+            Note note = WidgetUtils.parseNote(entry.getValue());
+            if (note == null || note.getId() == null || noteByWidget.containsKey(widgetId)) continue;
+            link(edit, widgetId, note.getId());
+            edit.putString(NOTE_PREFIX + note.getId(), entry.getValue());
+        }
+        edit.apply();
+    }
+
+    /**
+     * The widget id a key refers to, or null if it is not a widget id at all.
+     */
+    private static Integer parseWidgetId(String key) {
+        try {
+            return Integer.valueOf(key);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.streetwriters.notesnook;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PendingIntents our widgets hand to the launcher, kept across redraws.
+ *
+ * Every PendingIntent.getActivity is a call into the system server, and the widgets used to make
+ * them on every redraw, several per widget: the open and configure taps of a note preview, both
+ * sized layouts of the new note widget, the row template and add button of the reminders list.
+ * The reminders list also asked for FLAG_CANCEL_CURRENT, which threw away the intents the
+ * launcher was holding each time and briefly left taps going nowhere.
+ *
+ * Each intent is kept under its request code (the widget id, or 0 for ones every widget shares)
+ * and a slot naming what it is for. A redraw gets back the one it had unless the intent it would
+ * now send differs, e.g. a preview switched to another note; only then is the system asked again,
+ * with FLAG_UPDATE_CURRENT, so anything the launcher still holds keeps working.
+ *
+ * Only lives as long as the process, which is also as long as the PendingIntents are ours to
+ * reuse without asking.
+ */
+final class WidgetPendingIntents {
+    private static final SparseArray<Map<String, Entry>> cache = new SparseArray<>();
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+
+    private WidgetPendingIntents() {
+    }
+
+    /**
+     * A PendingIntent that starts {@code intent}, made once and reused while the intent stays the
+     * same. {@code flags} must include FLAG_UPDATE_CURRENT so that a changed intent replaces the
+     * old one in place.
+     */
+    static synchronized PendingIntent getActivity(Context context, int requestCode, String slot,
+                                                  Intent intent, int flags) {
+        Map<String, Entry> entries = cache.get(requestCode);
+        if (entries == null) {
+            entries = new HashMap<>();
+            cache.put(requestCode, entries);
+        }
+
+        // Covers the extras as well as what PendingIntents are matched on, so a new note id in an
+        // extra counts as a change too.
+        String uri = intent.toUri(0);
+        Entry entry = entries.get(slot);
+        if (entry != null && entry.flags == flags && entry.uri.equals(uri)) {
+            reused.incrementAndGet();
+            return entry.pendingIntent;
+        }
+
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, requestCode, intent, flags,
+                WidgetUtils.getActivityOptionsBundle());
+        entries.put(slot, new Entry(uri, flags, pendingIntent));
+        created.incrementAndGet();
+        return pendingIntent;
+    }
+
+    /**
+     * Drops what was kept for a widget that has been removed, or whose id was handed to another.
+     */
+    static synchronized void forget(int appWidgetId) {
+        cache.remove(appWidgetId);
+    }
+
+    /**
+     * How many PendingIntents were asked of the system.
+     */
+    static long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * How many redraws reused one instead, each a call into the system server saved.
+     */
+    static long getReused() {
+        return reused.get();
+    }
+
+    private static final class Entry {
+        final String uri;
+        final int flags;
+        final PendingIntent pendingIntent;
+
+        Entry(String uri, int flags, PendingIntent pendingIntent) {
+            this.uri = uri;
+            this.flags = flags;
+            this.pendingIntent = pendingIntent;
+        }
+    }
+}
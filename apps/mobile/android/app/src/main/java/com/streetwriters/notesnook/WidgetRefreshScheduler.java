@@ -0,0 +1,328 @@
+package com.streetwriters.notesnook;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one place widget redraws are asked for.
+ *
+ * Redraws come in bursts: a sync ends with the app refreshing every widget and then the reminders
+ * widget again, a clock change sends TIME_SET and TIMEZONE_CHANGED back to back, a restore is
+ * followed by onUpdate, reminders going off each ask for the list to be redrawn. Requests are
+ * collected for {@link #WINDOW_MS} after the first one, then every widget that was asked for is
+ * drawn once by {@link WidgetRenderer}, however many times it was asked for.
+ *
+ * Changes to the data a widget is drawn from are reported with {@link #invalidate}, naming what
+ * changed rather than which widgets to draw. Only the widgets whose last render used it, as
+ * recorded in {@link WidgetDependencies}, are drawn again: a clock change leaves note previews
+ * alone, a note edit leaves every other widget alone.
+ *
+ * Broadcast receivers pass the PendingResult from goAsync(). It is finished once the redraw it
+ * asked for is done, or once {@link #DEADLINE_MS} has passed, whichever comes first, so a slow
+ * render can never hold the broadcast past the system's limit. Anything still drawing at that
+ * point carries on; the process is just no longer guaranteed to stay alive for it.
+ */
+final class WidgetRefreshScheduler {
+    private static final String TAG = "WidgetRefreshScheduler";
+
+    /**
+     * How long requests are collected before drawing. Short enough not to be noticed, long enough
+     * to cover the calls the app makes one after another.
+     */
+    static final long WINDOW_MS = 250;
+
+    /**
+     * Well inside the ten seconds a foreground broadcast gets before it is considered an ANR.
+     */
+    static final long DEADLINE_MS = 8000;
+
+    /**
+     * Why a redraw was asked for. Used to report what a redraw covered, and for
+     * {@link #TIME_CHANGED} to work out again what was worked out from the old clock before
+     * drawing.
+     */
+    enum Reason {
+        /**
+         * The system asked, through onUpdate.
+         */
+        SYSTEM,
+        /**
+         * The widget was resized.
+         */
+        OPTIONS_CHANGED,
+        /**
+         * The clock or timezone changed.
+         */
+        TIME_CHANGED,
+        /**
+         * Something a widget shows was due to change with the time, see
+         * {@link WidgetTransitionAlarm}.
+         */
+        TRANSITION,
+        /**
+         * A note shown in a widget changed.
+         */
+        NOTE_CHANGED,
+        /**
+         * The reminders list changed.
+         */
+        REMINDERS_CHANGED,
+        /**
+         * A reminder was snoozed or marked done from the widget.
+         */
+        REMINDER_ACTION,
+        /**
+         * The app asked for everything to be redrawn.
+         */
+        REFRESH_ALL
+    }
+
+    private enum Kind {
+        NOTE_PREVIEW,
+        REMINDERS
+    }
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private static final Object lock = new Object();
+    /**
+     * Guarded by {@link #lock}, as is everything up to {@link #flushScheduled}.
+     */
+    private static Map<Integer, Kind> dirty = new LinkedHashMap<>();
+    /**
+     * What changed in this window, see {@link WidgetDependencies}.
+     */
+    private static Set<String> invalidated = new LinkedHashSet<>();
+    /**
+     * How many times every widget was asked for in this window, and how many single widgets were.
+     */
+    private static int allRequests;
+    private static int widgetRequests;
+    private static Set<Reason> reasons = EnumSet.noneOf(Reason.class);
+    private static List<Waiting> waiting = new ArrayList<>();
+    private static boolean flushScheduled;
+
+    private static final AtomicLong requested = new AtomicLong();
+    private static final AtomicLong drawn = new AtomicLong();
+
+    private WidgetRefreshScheduler() {
+    }
+
+    static void requestNotePreviews(Context context, int[] appWidgetIds, Reason reason,
+                                    BroadcastReceiver.PendingResult result) {
+        request(context, appWidgetIds, Kind.NOTE_PREVIEW, reason, result);
+    }
+
+    static void requestReminders(Context context, int[] appWidgetIds, Reason reason,
+                                 BroadcastReceiver.PendingResult result) {
+        request(context, appWidgetIds, Kind.REMINDERS, reason, result);
+    }
+
+    /**
+     * Redraws every widget that exists, see {@link WidgetUtils#refreshAll}.
+     */
+    static void requestAll(Context context, Reason reason, BroadcastReceiver.PendingResult result) {
+        synchronized (lock) {
+            allRequests++;
+            enqueue(context, reason, result);
+        }
+    }
+
+    /**
+     * Redraws the widgets that depend on what changed, one of the dependencies in
+     * {@link WidgetDependencies}.
+     */
+    static void invalidate(Context context, String dependency, Reason reason,
+                           BroadcastReceiver.PendingResult result) {
+        invalidate(context, Collections.singleton(dependency), reason, result);
+    }
+
+    static void invalidate(Context context, Collection<String> dependencies, Reason reason,
+                           BroadcastReceiver.PendingResult result) {
+        synchronized (lock) {
+            invalidated.addAll(dependencies);
+            enqueue(context, reason, result);
+        }
+    }
+
+    private static void request(Context context, int[] appWidgetIds, Kind kind, Reason reason,
+                                BroadcastReceiver.PendingResult result) {
+        synchronized (lock) {
+            widgetRequests += appWidgetIds.length;
+            for (int appWidgetId : appWidgetIds) dirty.put(appWidgetId, kind);
+            enqueue(context, reason, result);
+        }
+    }
+
+    private static void enqueue(Context context, Reason reason, BroadcastReceiver.PendingResult result) {
+        reasons.add(reason);
+        if (result != null) waiting.add(new Waiting(result));
+        if (flushScheduled) return;
+        flushScheduled = true;
+        Context appContext = context.getApplicationContext();
+        handler.postDelayed(() -> flush(appContext), WINDOW_MS);
+    }
+
+    private static void flush(Context context) {
+        Map<Integer, Kind> widgets;
+        Set<String> changed;
+        int all;
+        int single;
+        Set<Reason> flushedReasons;
+        List<Waiting> flushedWaiting;
+        synchronized (lock) {
+            widgets = dirty;
+            changed = invalidated;
+            all = allRequests;
+            single = widgetRequests;
+            flushedReasons = reasons;
+            flushedWaiting = waiting;
+            dirty = new LinkedHashMap<>();
+            invalidated = new LinkedHashSet<>();
+            allRequests = 0;
+            widgetRequests = 0;
+            reasons = EnumSet.noneOf(Reason.class);
+            waiting = new ArrayList<>();
+            flushScheduled = false;
+        }
+
+        WidgetRenderer.render(() -> {
+            // TIME_SET is also what the system sends when the 12/24-hour setting is switched.
+            if (flushedReasons.contains(Reason.TIME_CHANGED)) {
+                ReminderLabels.reset();
+                WidgetReminders.reschedule(context);
+            }
+            AppWidgetManager manager = AppWidgetManager.getInstance(context);
+            int requests = single;
+            if (all > 0) requests += all * addAll(context, manager, widgets);
+            if (!changed.isEmpty()) requests += addDependents(context, manager, changed, widgets);
+
+            List<WidgetRenderer.Job> jobs = new ArrayList<>();
+            for (Map.Entry<Integer, Kind> entry : widgets.entrySet()) {
+                jobs.add(entry.getValue() == Kind.NOTE_PREVIEW
+                        ? WidgetRenderer.notePreview(context, manager, entry.getKey())
+                        : WidgetRenderer.reminders(context, manager, entry.getKey()));
+            }
+            requested.addAndGet(requests);
+            drawn.addAndGet(jobs.size());
+            Log.d(TAG, "Drawing " + jobs.size() + " widgets for " + requests + " requests: " + flushedReasons);
+            return jobs;
+        }, () -> {
+            for (Waiting result : flushedWaiting) result.finish();
+        });
+    }
+
+    /**
+     * Adds every widget the system knows about, dropping stored notes for widgets that are gone.
+     *
+     * @return how many widgets there are.
+     */
+    private static int addAll(Context context, AppWidgetManager manager, Map<Integer, Kind> widgets) {
+        int[] noteWidgetIds = manager.getAppWidgetIds(new ComponentName(context, NotePreviewWidget.class));
+        int[] reminderWidgetIds = manager.getAppWidgetIds(new ComponentName(context, ReminderWidgetProvider.class));
+        WidgetNotes.retainWidgets(context, noteWidgetIds);
+        for (int appWidgetId : noteWidgetIds) widgets.put(appWidgetId, Kind.NOTE_PREVIEW);
+        for (int appWidgetId : reminderWidgetIds) widgets.put(appWidgetId, Kind.REMINDERS);
+        return noteWidgetIds.length + reminderWidgetIds.length;
+    }
+
+    /**
+     * Adds the widgets that have to be drawn again because of what changed.
+     *
+     * A widget drawn since the process started is only added if its last render used something
+     * that changed. One that has not been has no record, so it is added if it is of a kind that
+     * can depend on it at all: a reminders widget for the clock or the reminders list, a note
+     * preview showing the note.
+     *
+     * @return how many widgets were added.
+     */
+    private static int addDependents(Context context, AppWidgetManager manager, Set<String> changed,
+                                     Map<Integer, Kind> widgets) {
+        int added = 0;
+        int[] reminderWidgetIds = null;
+        for (String dependency : changed) {
+            Set<Integer> dependents = WidgetDependencies.getDependents(dependency);
+            String noteId = WidgetDependencies.getNoteId(dependency);
+            if (noteId != null) {
+                // The stored index is what the widget should show now, the record what it showed
+                // last; either way the widget is out of date.
+                Set<Integer> noteWidgetIds = new LinkedHashSet<>(dependents);
+                noteWidgetIds.addAll(WidgetNotes.getWidgetIds(context, noteId));
+                for (int appWidgetId : noteWidgetIds) {
+                    widgets.put(appWidgetId, Kind.NOTE_PREVIEW);
+                    added++;
+                }
+                continue;
+            }
+
+            if (reminderWidgetIds == null) {
+                reminderWidgetIds = manager.getAppWidgetIds(
+                        new ComponentName(context, ReminderWidgetProvider.class));
+            }
+            for (int appWidgetId : reminderWidgetIds) {
+                if (WidgetDependencies.isRecorded(appWidgetId) && !dependents.contains(appWidgetId)) continue;
+                widgets.put(appWidgetId, Kind.REMINDERS);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * How many widget redraws were asked for since the process started. Asking for every widget
+     * counts once for each widget there was at the time.
+     */
+    static long getRequested() {
+        return requested.get();
+    }
+
+    /**
+     * How many widgets were actually drawn to satisfy those requests. The difference from
+     * {@link #getRequested()} is how many redraws were merged away.
+     */
+    static long getDrawn() {
+        return drawn.get();
+    }
+
+    /**
+     * A broadcast waiting for its redraw.
+     */
+    private static final class Waiting {
+        private final BroadcastReceiver.PendingResult result;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final Runnable deadline;
+
+        Waiting(BroadcastReceiver.PendingResult result) {
+            this.result = result;
+            deadline = () -> {
+                if (finished.getAndSet(true)) return;
+                Log.w(TAG, "Widgets still drawing at the broadcast deadline");
+                result.finish();
+            };
+            handler.postDelayed(deadline, DEADLINE_MS);
+        }
+
+        void finish() {
+            if (finished.getAndSet(true)) return;
+            handler.removeCallbacks(deadline);
+            result.finish();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.streetwriters.notesnook;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.streetwriters.notesnook.datatypes.Reminder;
+import com.streetwriters.notesnook.datatypes.ReminderParser;
+import com.streetwriters.notesnook.storage.KeyValueStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The reminders shown by the reminders widget, stored one per key so a single reminder can change
+ * without the rest being rewritten or parsed again.
+ *
+ * The store holds:
+ * <pre>
+ *   reminder:&lt;reminder id&gt;  the reminder, as JSON, with the fields the widget needs
+ *   timeline:&lt;reminder id&gt;  its entry in the {@link ReminderTimeline} over them, if it has one
+ *   remindersTimeline        the version of those entries
+ * </pre>
+ * and a reminder and its entry are always written together, so a change to one reminder writes
+ * two keys however many there are. The app used to write the whole list as one JSON array
+ * under {@link WidgetUtils#REMINDERS_KEY}; a list left there by an older version is moved over
+ * the first time the reminders are read.
+ *
+ * Every change to these keys goes through here, so the timeline cannot drift from the store.
+ */
+class WidgetReminders {
+    private static final String TAG = "WidgetReminders";
+
+    private static final String REMINDER_PREFIX = "reminder:";
+    private static final String ENTRY_PREFIX = "timeline:";
+    static final String TIMELINE_KEY = "remindersTimeline";
+
+    /**
+     * Null until first used.
+     */
+    private static ReminderTimeline timeline;
+
+    private WidgetReminders() {
+    }
+
+    /**
+     * The ids of the reminders visible at {@code now}, in the order they go off, at most
+     * {@code limit} of them. Nothing is parsed.
+     */
+    static synchronized List<String> getVisibleIds(Context context, long now, int limit) {
+        ensureLoaded(context);
+        return timeline.getVisible(now, limit);
+    }
+
+    /**
+     * The stored reminder, or null if there is none. Must not be modified.
+     */
+    static Reminder get(Context context, String id) {
+        return WidgetUtils.parseReminder(WidgetUtils.getStore(context).getString(REMINDER_PREFIX + id));
+    }
+
+    /**
+     * The stored reminder as JSON, or null if there is none.
+     */
+    static String getData(Context context, String id) {
+        return WidgetUtils.getStore(context).getString(REMINDER_PREFIX + id);
+    }
+
+    /**
+     * Whether there is any reminder that could be shown, now or at some other time.
+     */
+    static synchronized boolean isEmpty(Context context) {
+        ensureLoaded(context);
+        return timeline.isEmpty();
+    }
+
+    /**
+     * See {@link ReminderTimeline#getNextVisibilityChange}.
+     */
+    static synchronized long getNextVisibilityChange(Context context, long now) {
+        ensureLoaded(context);
+        return timeline.getNextVisibilityChange(now);
+    }
+
+    /**
+     * Works out when each repeating reminder next goes off again, after the clock or timezone
+     * changed, and saves the entries that changed.
+     */
+    static synchronized void reschedule(Context context) {
+        ensureLoaded(context);
+        KeyValueStore.Editor editor = WidgetUtils.getStore(context).edit();
+        for (String id : timeline.reschedule(System.currentTimeMillis())) {
+            writeEntry(editor, id);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Adds the reminder, or replaces the stored one with the same id.
+     *
+     * @return whether anything changed.
+     */
+    static synchronized boolean upsert(Context context, String data) {
+        String id = ReminderParser.INSTANCE.parseId(data);
+        if (id == null) {
+            Log.w(TAG, "Ignoring a reminder without an id");
+            return false;
+        }
+        ensureLoaded(context);
+        KeyValueStore store = WidgetUtils.getStore(context);
+        data = ReminderActions.withPending(store, id, data);
+        String key = REMINDER_PREFIX + id;
+        if (data.equals(store.getString(key))) return false;
+
+        Reminder reminder = ReminderParser.INSTANCE.parse(data);
+        if (reminder == null) return false;
+
+        timeline.put(id, reminder, System.currentTimeMillis());
+        KeyValueStore.Editor editor = store.edit().putString(key, data);
+        writeEntry(editor, id);
+        editor.apply();
+        return true;
+    }
+
+    /**
+     * @return whether the reminder was stored.
+     */
+    static synchronized boolean remove(Context context, String id) {
+        ensureLoaded(context);
+        KeyValueStore store = WidgetUtils.getStore(context);
+        String key = REMINDER_PREFIX + id;
+        if (!store.contains(key)) return false;
+
+        timeline.remove(id);
+        store.edit()
+                .remove(key)
+                .remove(ENTRY_PREFIX + id)
+                .apply();
+        return true;
+    }
+
+    /**
+     * Makes the stored reminders exactly the ones in the list, a JSON array. Only reminders that
+     * are new or differ from what is stored are written and parsed.
+     *
+     * @return whether anything changed.
+     */
+    static synchronized boolean replaceAll(Context context, String list) {
+        ensureLoaded(context);
+        KeyValueStore store = WidgetUtils.getStore(context);
+        KeyValueStore.Editor editor = store.edit();
+        boolean changed = replaceAll(store, editor, list);
+        editor.apply();
+        return changed;
+    }
+
+    private static boolean replaceAll(KeyValueStore store, KeyValueStore.Editor editor, String list) {
+        List<int[]> spans = findObjects(list);
+        if (spans == null) {
+            Log.w(TAG, "Could not read the reminders list");
+            return false;
+        }
+
+        boolean changed = false;
+        long now = System.currentTimeMillis();
+        Set<String> ids = new HashSet<>();
+        for (int[] span : spans) {
+            String data = list.substring(span[0], span[1]);
+            String id = ReminderParser.INSTANCE.parseId(data);
+            if (id == null || !ids.add(id)) continue;
+            data = ReminderActions.withPending(store, id, data);
+            String key = REMINDER_PREFIX + id;
+            if (data.equals(store.getString(key))) continue;
+
+            Reminder reminder = ReminderParser.INSTANCE.parse(data);
+            if (reminder == null) continue;
+            timeline.put(id, reminder, now);
+            editor.putString(key, data);
+            writeEntry(editor, id);
+            changed = true;
+        }
+        for (String key : store.withPrefix(REMINDER_PREFIX).keySet()) {
+            String id = key.substring(REMINDER_PREFIX.length());
+            if (ids.contains(id)) continue;
+            timeline.remove(id);
+            editor.remove(key);
+            editor.remove(ENTRY_PREFIX + id);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Saves the reminder's timeline entry as it is now, or removes it if it has none.
+     */
+    private static void writeEntry(KeyValueStore.Editor editor, String id) {
+        editor.putString(ENTRY_PREFIX + id, timeline.encode(id));
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (timeline != null) return;
+        KeyValueStore store = WidgetUtils.getStore(context);
+        KeyValueStore.Editor editor = store.edit();
+
+        Map<String, String> entries = new HashMap<>();
+        for (Map.Entry<String, String> entry : store.withPrefix(ENTRY_PREFIX).entrySet()) {
+            entries.put(entry.getKey().substring(ENTRY_PREFIX.length()), entry.getValue());
+        }
+        timeline = ReminderTimeline.decode(store.getString(TIMELINE_KEY), entries);
+        if (timeline == null) {
+            for (String key : store.withPrefix(ENTRY_PREFIX).keySet()) editor.remove(key);
+            timeline = new ReminderTimeline();
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, String> entry : store.withPrefix(REMINDER_PREFIX).entrySet()) {
+                Reminder reminder = ReminderParser.INSTANCE.parse(entry.getValue());
+                if (reminder == null) continue;
+                String id = entry.getKey().substring(REMINDER_PREFIX.length());
+                timeline.put(id, reminder, now);
+                writeEntry(editor, id);
+            }
+            editor.putString(TIMELINE_KEY, ReminderTimeline.VERSION);
+        }
+
+        String legacy = store.getString(WidgetUtils.REMINDERS_KEY);
+        if (legacy != null) {
+            replaceAll(store, editor, legacy);
+            editor.remove(WidgetUtils.REMINDERS_KEY);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Where each top level object in a JSON array starts and ends, found without parsing them.
+     * Null if the text is not an array of objects; an empty list for "null".
+     */
+    static List<int[]> findObjects(String json) {
+        List<int[]> spans = new ArrayList<>();
+        int i = skipWhitespace(json, 0);
+        if (json.startsWith("null", i)) return spans;
+        if (i >= json.length() || json.charAt(i) != '[') return null;
+        i = skipWhitespace(json, i + 1);
+        if (i < json.length() && json.charAt(i) == ']') return spans;
+
+        while (i < json.length()) {
+            if (json.charAt(i) != '{') return null;
+            int start = i;
+            int depth = 0;
+            boolean inString = false;
+            for (; i < json.length(); i++) {
+                char c = json.charAt(i);
+                if (inString) {
+                    if (c == '\\') i++;
+                    else if (c == '"') inString = false;
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) break;
+                }
+            }
+            if (i >= json.length()) return null;
+            spans.add(new int[]{start, i + 1});
+
+            i = skipWhitespace(json, i + 1);
+            if (i >= json.length()) return null;
+            if (json.charAt(i) == ']') return spans;
+            if (json.charAt(i) != ',') return null;
+            i = skipWhitespace(json, i + 1);
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+        return i;
+    }
+}
@@ -0,0 +1,98 @@
+package com.streetwriters.notesnook;
+
+import android.util.SparseArray;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers what each widget was last drawn with, so a redraw with the same inputs can be
+ * skipped instead of sending the launcher an identical RemoteViews to inflate again.
+ *
+ * A render is described by two fingerprints. The layout fingerprint covers everything that
+ * changes the shape of the views or where a tap goes: which layout, which views are visible, which
+ * note is opened. The text fingerprint covers the strings drawn into them. When only the text
+ * changed, the views already on screen are fine as they are and a partial update that sets the
+ * new text is enough.
+ *
+ * Only lives as long as the process. The first render of every widget after a restart is a full
+ * one, which also covers anything the launcher may have lost in the meantime.
+ */
+final class WidgetRenderState {
+
+    enum Update {
+        /**
+         * Drawn with exactly these inputs last time: nothing to send.
+         */
+        NONE,
+        /**
+         * Only the text changed: send just the new text.
+         */
+        PARTIAL,
+        FULL
+    }
+
+    private static final SparseArray<Fingerprint> rendered = new SparseArray<>();
+
+    private static final AtomicLong fullUpdates = new AtomicLong();
+    private static final AtomicLong partialUpdates = new AtomicLong();
+    private static final AtomicLong skippedUpdates = new AtomicLong();
+
+    private WidgetRenderState() {
+    }
+
+    /**
+     * What kind of update it takes to bring the widget to these inputs, recorded as what the widget
+     * now shows. Callers that then fail to send the update must {@link #forget} the widget.
+     *
+     * @param text null for widgets that can never be partially updated.
+     */
+    static synchronized Update update(int appWidgetId, String layout, String text) {
+        Fingerprint last = rendered.get(appWidgetId);
+        rendered.put(appWidgetId, new Fingerprint(layout, text));
+
+        if (last == null || !last.layout.equals(layout)) {
+            fullUpdates.incrementAndGet();
+            return Update.FULL;
+        }
+        if (Objects.equals(last.text, text)) {
+            skippedUpdates.incrementAndGet();
+            return Update.NONE;
+        }
+        if (text == null || last.text == null) {
+            fullUpdates.incrementAndGet();
+            return Update.FULL;
+        }
+        partialUpdates.incrementAndGet();
+        return Update.PARTIAL;
+    }
+
+    /**
+     * Makes the next render of the widget a full one.
+     */
+    static synchronized void forget(int appWidgetId) {
+        rendered.remove(appWidgetId);
+    }
+
+    static long getFullUpdates() {
+        return fullUpdates.get();
+    }
+
+    static long getPartialUpdates() {
+        return partialUpdates.get();
+    }
+
+    static long getSkippedUpdates() {
+        return skippedUpdates.get();
+    }
+
+    private static final class Fingerprint {
+        final String layout;
+        final String text;
+
+        Fingerprint(String layout, String text) {
+            this.layout = layout;
+            this.text = text;
+        }
+    }
+}
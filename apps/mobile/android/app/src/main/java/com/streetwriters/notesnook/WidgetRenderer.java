@@ -0,0 +1,146 @@
+package com.streetwriters.notesnook;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws widgets on a small pool of background threads instead of on whichever thread asked.
+ *
+ * Drawing a widget means reading the store, parsing JSON and building RemoteViews. Done inline
+ * that lands on the main thread for every widget broadcast and on the native modules thread for
+ * the bridge, which with a few widgets on screen is enough to drop frames or, for a broadcast, to
+ * come close to an ANR. Requests reach this through {@link WidgetRefreshScheduler}, which also
+ * keeps broadcasts from waiting on it for too long.
+ *
+ * Renders of the same widget never overlap. Each one reads the current data when it starts, so
+ * the last to run is the one that reflects the latest change.
+ */
+final class WidgetRenderer {
+    private static final String TAG = "WidgetRenderer";
+
+    private static final int THREADS =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "WidgetRenderer");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ConcurrentHashMap<Integer, Object> locks = new ConcurrentHashMap<>();
+
+    private WidgetRenderer() {
+    }
+
+    /**
+     * Drawing one widget.
+     */
+    static final class Job {
+        final int appWidgetId;
+        final Runnable render;
+
+        Job(int appWidgetId, Runnable render) {
+            this.appWidgetId = appWidgetId;
+            this.render = render;
+        }
+    }
+
+    static Job notePreview(Context context, AppWidgetManager manager, int appWidgetId) {
+        return new Job(appWidgetId, () -> NotePreviewWidget.updateAppWidget(context, manager, appWidgetId));
+    }
+
+    static Job reminders(Context context, AppWidgetManager manager, int appWidgetId) {
+        return new Job(appWidgetId, () -> {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_reminders);
+            ReminderWidgetProvider.updateAppWidget(context, manager, appWidgetId, views);
+        });
+    }
+
+    /**
+     * Draws the widgets in parallel and returns right away.
+     *
+     * @param done run once every widget has been drawn, or null.
+     */
+    static void render(List<Job> jobs, Runnable done) {
+        new Batch(done).run(jobs);
+    }
+
+    /**
+     * Same as {@link #render(List, Runnable)}, for when working out which widgets to draw already
+     * needs the disk or a binder call and so cannot happen on the caller's thread either.
+     */
+    static void render(Callable<List<Job>> prepare, Runnable done) {
+        Batch batch = new Batch(done);
+        executor.execute(() -> {
+            List<Job> jobs;
+            try {
+                jobs = prepare.call();
+            } catch (Exception e) {
+                Log.e(TAG, "Could not work out which widgets to draw", e);
+                jobs = Collections.emptyList();
+            }
+            batch.run(jobs);
+        });
+    }
+
+    /**
+     * One set of widgets being drawn.
+     */
+    private static final class Batch {
+        private final Runnable done;
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        Batch(Runnable done) {
+            this.done = done;
+        }
+
+        void run(List<Job> jobs) {
+            if (jobs.isEmpty()) {
+                finish();
+                return;
+            }
+            remaining.set(jobs.size());
+            for (Job job : jobs) {
+                executor.execute(() -> {
+                    try {
+                        synchronized (lockFor(job.appWidgetId)) {
+                            job.render.run();
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Could not draw widget " + job.appWidgetId, e);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) finish();
+                    }
+                });
+            }
+        }
+
+        private void finish() {
+            if (done != null) done.run();
+        }
+    }
+
+    private static Object lockFor(int appWidgetId) {
+        Object lock = locks.get(appWidgetId);
+        if (lock != null) return lock;
+        Object created = new Object();
+        lock = locks.putIfAbsent(appWidgetId, created);
+        return lock == null ? created : lock;
+    }
+}
@@ -5,7 +5,8 @@ import android.content.Context;
 import android.content.Intent;
 
 /**
- * Redraws the widgets when the clock or timezone changes.
+ * Redraws the widgets that depend on the current time when the clock or timezone changes. Note
+ * previews do not, so they are left alone.
  *
  * Reminder rows are described relative to the current time ("Upcoming"/"Last", "Today"/"Tomorrow"),
  * and a reminder that has passed drops off the list entirely. All of that is decided when the
@@ -17,12 +18,18 @@ import android.content.Intent;
  *
  * Only TIME_SET and TIMEZONE_CHANGED are handled here: DATE_CHANGED is not exempt from the
  * Android 8 limits on manifest-registered implicit broadcasts, so a receiver for it would never
- * run. Crossing midnight is instead picked up by the widget's own periodic update.
+ * run. Crossing midnight, and everything else that changes as time passes normally, is instead
+ * picked up by {@link WidgetTransitionAlarm}, which is delivered here too.
  */
 public class WidgetTimeChangeReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        WidgetUtils.refreshAll(context);
+        PendingResult result = goAsync();
+        // The labels and repeating reminders are worked out again by the scheduler, off the main
+        // thread, before it redraws.
+        WidgetRefreshScheduler.Reason reason = WidgetTransitionAlarm.ACTION.equals(intent.getAction())
+                ? WidgetRefreshScheduler.Reason.TRANSITION : WidgetRefreshScheduler.Reason.TIME_CHANGED;
+        WidgetRefreshScheduler.invalidate(context, WidgetDependencies.TIME, reason, result);
     }
 }
@@ -0,0 +1,65 @@
+package com.streetwriters.notesnook;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Wakes the reminders widget up at the next moment something it shows is due to change: a row
+ * going from "Upcoming" to "Last", a snooze ending, midnight turning "Tomorrow" into "Today", a
+ * reminder dropping off the list. The widget used to be redrawn every 30 minutes instead, which
+ * woke the process whether or not anything had changed and still left labels wrong for up to
+ * half an hour.
+ *
+ * There is only ever one alarm, moved every time the widget is drawn. It is inexact within
+ * {@link #WINDOW_MS}, which lets the system batch it with other work, and does not wake the
+ * device: nobody is looking at the home screen while the screen is off, and the alarm goes off as
+ * soon as it comes back on.
+ */
+final class WidgetTransitionAlarm {
+    static final String ACTION = "com.streetwriters.notesnook.WIDGET_TRANSITION";
+
+    /**
+     * How late the alarm may go off. Labels only show minutes.
+     */
+    private static final long WINDOW_MS = 60 * 1000;
+
+    /**
+     * When the alarm was last set for, so drawing several widgets in a row does not set the same
+     * alarm again for each. Guarded by the class.
+     */
+    private static long scheduledAt = -1;
+
+    private WidgetTransitionAlarm() {
+    }
+
+    /**
+     * Sets the alarm for {@code at}, replacing any earlier one. {@code Long.MAX_VALUE} means
+     * nothing is due to change, and cancels it.
+     */
+    static synchronized void schedule(Context context, long at) {
+        if (at == scheduledAt) return;
+        if (at == Long.MAX_VALUE) {
+            cancel(context);
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) return;
+        alarmManager.setWindow(AlarmManager.RTC, at, WINDOW_MS, getPendingIntent(context));
+        scheduledAt = at;
+    }
+
+    static synchronized void cancel(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager != null) alarmManager.cancel(getPendingIntent(context));
+        scheduledAt = -1;
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        Intent intent = new Intent(context, WidgetTimeChangeReceiver.class);
+        intent.setAction(ACTION);
+        return PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+}
@@ -5,26 +5,19 @@ import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.text.format.DateUtils;
-import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
 import android.widget.RemoteViews;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.streetwriters.notesnook.datatypes.Note;
+import com.streetwriters.notesnook.datatypes.NoteParser;
 import com.streetwriters.notesnook.datatypes.Reminder;
+import com.streetwriters.notesnook.datatypes.ReminderParser;
+import com.streetwriters.notesnook.storage.KeyValueStore;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,13 +26,37 @@ import java.util.concurrent.TimeUnit;
 public class WidgetUtils {
 
     static final String PREFERENCES = "appPreview";
+    /**
+     * Where older versions of the app wrote the whole reminders list, see {@link WidgetReminders}.
+     */
     static final String REMINDERS_KEY = "remindersList";
 
+    static KeyValueStore getStore(Context context) {
+        return KeyValueStore.get(context, PREFERENCES);
+    }
+
+    /**
+     * Parsed notes and reminders, keyed by the stored string they were parsed from, shared by
+     * every widget and every redraw in the process. Widgets are redrawn far more often than their
+     * data changes.
+     *
+     * The key is the string itself rather than a separate hash of it: the store hands back the
+     * same String instance until the value is rewritten, so its hash is computed once and the
+     * equality check is an identity check, and two different values can never share an entry.
+     * Cached models must not be modified.
+     */
+    private static final LruCache<String, Note> noteCache = new LruCache<>(16);
+    /**
+     * Holds more rows than fit on screen, so a change to one reminder only parses that one again.
+     * Grown by {@link #ensureReminderCapacity} to the longest list a widget reads.
+     */
+    private static final LruCache<String, Reminder> reminderCache = new LruCache<>(64);
+
     /**
-     * Every row is serialized into the widget update itself, which has to fit inside a binder
-     * transaction, so the list cannot grow without bound. Far more than fits on screen anyway.
+     * Built on first use by {@link #getActivityOptionsBundle()}. Stays null below Android 14, where
+     * there are no options to send.
      */
-    private static final int MAX_REMINDERS = 50;
+    private static Bundle activityOptionsBundle;
 
     /**
      * Redraws every widget that currently exists, and drops stored notes for widgets that no
@@ -53,120 +70,67 @@ public class WidgetUtils {
      *
      * NoteWidget is left alone deliberately: it is a static button with no stored state, and its
      * layout depends on the size it was last given.
+     *
+     * Returns right away; the widgets are drawn by {@link WidgetRefreshScheduler}.
      */
     static void refreshAll(Context context) {
-        AppWidgetManager manager = AppWidgetManager.getInstance(context);
-
-        int[] noteWidgetIds = manager.getAppWidgetIds(
-                new ComponentName(context, NotePreviewWidget.class));
-        removeOrphanedNotes(context, noteWidgetIds);
-        for (int appWidgetId : noteWidgetIds) {
-            NotePreviewWidget.updateAppWidget(context, manager, appWidgetId);
-        }
-
-        for (int appWidgetId : manager.getAppWidgetIds(
-                new ComponentName(context, ReminderWidgetProvider.class))) {
-            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_reminders);
-            ReminderWidgetProvider.updateAppWidget(context, manager, appWidgetId, views);
-        }
+        WidgetRefreshScheduler.requestAll(context, WidgetRefreshScheduler.Reason.REFRESH_ALL, null);
     }
 
     /**
-     * Drops stored notes whose widget is gone, so the preferences file cannot grow forever.
+     * Drops stored notes whose widget is gone, without redrawing anything.
      */
-    private static void removeOrphanedNotes(Context context, int[] liveWidgetIds) {
-        Set<String> live = new HashSet<>();
-        for (int appWidgetId : liveWidgetIds) live.add(String.valueOf(appWidgetId));
-
-        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
-        SharedPreferences.Editor edit = preferences.edit();
-        boolean changed = false;
-
-        for (String key : preferences.getAll().keySet()) {
-            // Leave anything that is not a widget id alone, the reminders list included.
-            if (parseWidgetId(key) == null || live.contains(key)) continue;
-            edit.remove(key);
-            changed = true;
-        }
-        if (changed) edit.apply();
+    static void removeOrphanedNotes(Context context) {
+        removeOrphanedNotes(context, AppWidgetManager.getInstance(context).getAppWidgetIds(
+                new ComponentName(context, NotePreviewWidget.class)));
     }
 
     /**
-     * The note each note widget is showing, keyed by widget id.
-     *
-     * The preferences file mixes two things: one note per widget id, and the reminders list under
-     * its own key. Only numeric keys are widget notes, so anything else is skipped rather than
-     * being treated as a note.
+     * Drops stored notes whose widget is gone, so the store cannot grow forever.
      */
-    static Map<Integer, Note> getWidgetNotes(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
-        Map<Integer, Note> notes = new LinkedHashMap<>();
+    private static void removeOrphanedNotes(Context context, int[] liveWidgetIds) {
+        WidgetNotes.retainWidgets(context, liveWidgetIds);
+    }
 
-        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
-            Integer widgetId = parseWidgetId(entry.getKey());
-            if (widgetId == null) continue;
-            if (!(entry.getValue() instanceof String)) continue;
+    static Note parseNote(String data) {
+        if (data == null) return null;
+        Note note = noteCache.get(data);
+        if (note != null) return note;
+        note = NoteParser.INSTANCE.parse(data);
+        if (note != null) noteCache.put(data, note);
+        return note;
+    }
 
-            Note note = parseNote((String) entry.getValue());
-            if (note == null || note.getId() == null) continue;
-            notes.put(widgetId, note);
-        }
-        return notes;
+    static Reminder parseReminder(String data) {
+        if (data == null) return null;
+        Reminder reminder = reminderCache.get(data);
+        if (reminder != null) return reminder;
+        reminder = ReminderParser.INSTANCE.parse(data);
+        if (reminder != null) reminderCache.put(data, reminder);
+        return reminder;
     }
 
     /**
-     * The widget id a preferences key refers to, or null if the key is not a widget id at all.
+     * Makes room for {@code count} parsed reminders. A list read in order through a cache smaller
+     * than itself pushes out each reminder before it is read again, and so parses every one of
+     * them on every redraw.
      */
-    private static Integer parseWidgetId(String key) {
-        try {
-            return Integer.valueOf(key);
-        } catch (NumberFormatException e) {
-            return null;
-        }
-    }
-
-    static Note parseNote(String data) {
-        if (data == null || data.isEmpty()) return null;
-        try {
-            return new Gson().fromJson(data, Note.class);
-        } catch (Exception e) {
-            Log.e("NotePreviewWidget", "Could not read a stored note", e);
-            return null;
-        }
+    static void ensureReminderCapacity(int count) {
+        if (count > reminderCache.maxSize()) reminderCache.resize(count);
     }
 
     /**
-     * The reminders the app last wrote out, minus any that have now dropped out of view. Reading
-     * and filtering happens here so the provider can push the rows straight into the widget.
+     * Whether the app has written out any reminders that could be shown, now or at some other
+     * time.
      */
-    static List<Reminder> getWidgetReminders(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
-        List<Reminder> stored = null;
-        try {
-            stored = new Gson().fromJson(preferences.getString(REMINDERS_KEY, "[]"),
-                    new TypeToken<List<Reminder>>() {}.getType());
-        } catch (Exception e) {
-            Log.e("Reminders", "Could not read the stored reminders list", e);
-        }
-
-        List<Reminder> active = new ArrayList<>();
-        if (stored == null) return active;
-
-        for (Reminder reminder : stored) {
-            if (!isVisibleInWidget(reminder)) continue;
-            if (active.size() >= MAX_REMINDERS) {
-                Log.w("Reminders", "Widget list truncated to " + MAX_REMINDERS + " reminders");
-                break;
-            }
-            active.add(reminder);
-        }
-        return active;
+    static boolean hasStoredReminders(Context context) {
+        return !WidgetReminders.isEmpty(context);
     }
 
     /**
-     * Builds a single row of the reminders list.
+     * Builds a single row of the reminders list, labelled by {@link ReminderLabels}.
      */
-    static RemoteViews createReminderItem(Context context, Reminder reminder) {
+    static RemoteViews createReminderItem(Context context, Reminder reminder, String label) {
         boolean useMiniLayout = reminder.getDescription() == null || reminder.getDescription().isEmpty();
 
         RemoteViews views = new RemoteViews(context.getPackageName(),
@@ -176,16 +140,29 @@ public class WidgetUtils {
         if (!useMiniLayout) {
             views.setTextViewText(R.id.reminder_description, reminder.getDescription());
         }
-        views.setTextViewText(R.id.reminder_time, formatReminderTime(context, reminder));
+        views.setTextViewText(R.id.reminder_time, label);
 
         Intent fillInIntent = new Intent();
         fillInIntent.setData(Uri.parse("https://app.notesnook.com/open_reminder?id=" + reminder.getId()));
         fillInIntent.putExtra(RCTNNativeModule.IntentType, "OpenReminder");
         fillInIntent.putExtra(ReminderWidgetProvider.OpenReminderId, reminder.getId());
         views.setOnClickFillInIntent(R.id.reminder_item_btn, fillInIntent);
+        views.setOnClickFillInIntent(R.id.reminder_snooze, createReminderAction(reminder, ReminderActions.SNOOZE));
+        if (ReminderActions.isRepeating(reminder)) {
+            views.setViewVisibility(R.id.reminder_done, View.GONE);
+        } else {
+            views.setOnClickFillInIntent(R.id.reminder_done, createReminderAction(reminder, ReminderActions.DONE));
+        }
         return views;
     }
 
+    private static Intent createReminderAction(Reminder reminder, String action) {
+        Intent intent = new Intent();
+        intent.putExtra(ReminderActionReceiver.EXTRA_ACTION, action);
+        intent.putExtra(ReminderWidgetProvider.OpenReminderId, reminder.getId());
+        return intent;
+    }
+
     /**
      * Options attached to the PendingIntents our widgets hand to the launcher, opting the creator
      * (us) in to background activity starts so a tap on the widget can bring up an activity.
@@ -194,8 +171,16 @@ public class WidgetUtils {
      * background activity launch restrictions to IntentSender, so on API 36+ we use the narrower
      * MODE_BACKGROUND_ACTIVITY_START_ALLOW_IF_VISIBLE instead. That is enough for widgets: the
      * sender is the launcher, which is visible whenever the user taps the widget.
+     *
+     * The options only depend on the API level, so they are built once. The bundle is shared and
+     * must not be changed.
      */
-    static Bundle getActivityOptionsBundle() {
+    static synchronized Bundle getActivityOptionsBundle() {
+        if (activityOptionsBundle == null) activityOptionsBundle = createActivityOptionsBundle();
+        return activityOptionsBundle;
+    }
+
+    private static Bundle createActivityOptionsBundle() {
         ActivityOptions activityOptions;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.BAKLAVA) {
             activityOptions = ActivityOptions.makeBasic();
@@ -219,81 +204,18 @@ public class WidgetUtils {
     private static final long RECENTLY_PASSED_WINDOW_MS = TimeUnit.HOURS.toMillis(3);
 
     /**
-     * Whether a reminder should still be drawn.
+     * Until when a reminder should be drawn: {@code Long.MAX_VALUE} for one that stays until the
+     * app says otherwise, {@code Long.MIN_VALUE} for one that is never drawn.
      *
-     * We re-check here rather than trusting the stored list because that list is only rewritten
+     * We decide this here rather than trusting the stored list because that list is only rewritten
      * while the app runs. This is what actually retires a reminder once its grace period is up:
-     * every redraw re-evaluates it against the current time.
+     * every redraw compares it against the current time, through {@link ReminderTimeline}.
      */
-    static boolean isVisibleInWidget(Reminder reminder) {
-        if (reminder == null) return false;
-        if (reminder.isDisabled()) return false;
-
-        long now = System.currentTimeMillis();
-        if (reminder.getSnoozeUntil() > now) return true;
-        if (!"once".equals(reminder.getMode())) return true;
+    static long getVisibleUntil(Reminder reminder) {
+        if (reminder == null || reminder.isDisabled()) return Long.MIN_VALUE;
+        if (!"once".equals(reminder.getMode())) return Long.MAX_VALUE;
 
         long triggerDate = reminder.getTriggerDate() > 0 ? reminder.getTriggerDate() : reminder.getDate();
-        return triggerDate > now - RECENTLY_PASSED_WINDOW_MS;
-    }
-
-    /**
-     * Builds the label shown under a reminder. The app sends us the absolute trigger time plus the
-     * parts that never change ("5:00 PM", "12-05-2026, 5:00 PM"); everything that depends on the
-     * current time is decided here so it stays right as the widget redraws.
-     *
-     * Falls back to the pre-formatted string for lists written by an older version of the app.
-     */
-    static String formatReminderTime(Context context, Reminder reminder) {
-        long triggerDate = reminder.getTriggerDate();
-        String timeOfDay = reminder.getFormattedTimeOfDay();
-        if (triggerDate <= 0 || timeOfDay == null || timeOfDay.isEmpty()) {
-            return reminder.getFormattedTime();
-        }
-
-        if ("permanent".equals(reminder.getMode())) {
-            return context.getString(R.string.reminder_ongoing);
-        }
-
-        long now = System.currentTimeMillis();
-        if (reminder.getSnoozeUntil() > now) {
-            return context.getString(R.string.reminder_snoozed_until, timeOfDay);
-        }
-
-        String text;
-        long dayOffset = daysFromToday(triggerDate, now);
-        if (dayOffset == 0) {
-            text = context.getString(R.string.reminder_today, timeOfDay);
-        } else if (dayOffset == 1) {
-            text = context.getString(R.string.reminder_tomorrow, timeOfDay);
-        } else if (dayOffset == -1) {
-            text = context.getString(R.string.reminder_yesterday, timeOfDay);
-        } else {
-            text = reminder.getFormattedDateTime();
-            if (text == null || text.isEmpty()) return reminder.getFormattedTime();
-        }
-
-        return context.getString(
-                triggerDate <= now ? R.string.reminder_last : R.string.reminder_upcoming, text);
-    }
-
-    /**
-     * Calendar days between two instants. Compares midnights rather than subtracting the raw
-     * difference so that "tomorrow" is still tomorrow across a DST change or just before midnight.
-     */
-    private static long daysFromToday(long time, long now) {
-        long target = startOfDay(time);
-        long today = startOfDay(now);
-        return Math.round((target - today) / (double) DateUtils.DAY_IN_MILLIS);
-    }
-
-    private static long startOfDay(long time) {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(time);
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        return calendar.getTimeInMillis();
+        return Math.max(reminder.getSnoozeUntil(), triggerDate + RECENTLY_PASSED_WINDOW_MS);
     }
 }
@@ -0,0 +1,104 @@
+package com.streetwriters.notesnook.datatypes;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads items out of the JSON the app stores for the widgets, without going through Gson's
+ * reflection. Only the fields the widgets actually draw are read; everything else in the object,
+ * which is most of it, is skipped over without being decoded.
+ *
+ * Parsers hold no state, so each type has one shared instance.
+ */
+public abstract class ItemParser<T extends BaseItem> {
+
+    protected abstract T create();
+
+    /**
+     * Reads the value of one field into the item, or skips it if the widgets do not use it. Null
+     * values never get here.
+     */
+    protected abstract void readField(JsonReader reader, String name, T item) throws IOException;
+
+    /**
+     * The item in {@code json}, or null if there is none or it cannot be read.
+     */
+    public T parse(String json) {
+        if (json == null || json.isEmpty()) return null;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) return null;
+            return read(reader);
+        } catch (Exception e) {
+            Log.e("ItemParser", "Could not read a stored item", e);
+            return null;
+        }
+    }
+
+    /**
+     * Just the id of the item in {@code json}, reading no further than it. Null if there is none
+     * or it cannot be read.
+     */
+    public String parseId(String json) {
+        if (json == null || json.isEmpty()) return null;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name) && reader.peek() == JsonToken.STRING) return reader.nextString();
+                reader.skipValue();
+            }
+            return null;
+        } catch (Exception e) {
+            Log.e("ItemParser", "Could not read a stored item", e);
+            return null;
+        }
+    }
+
+    /**
+     * The items in the JSON array {@code json}. Null if it cannot be read; entries that are not
+     * objects are left out.
+     */
+    public List<T> parseList(String json) {
+        List<T> items = new ArrayList<>();
+        if (json == null || json.isEmpty()) return items;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            if (reader.peek() == JsonToken.NULL) return items;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) items.add(read(reader));
+                else reader.skipValue();
+            }
+            reader.endArray();
+            return items;
+        } catch (Exception e) {
+            Log.e("ItemParser", "Could not read a stored list", e);
+            return null;
+        }
+    }
+
+    private T read(JsonReader reader) throws IOException {
+        T item = create();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if ("id".equals(name)) {
+                item.setId(reader.nextString());
+            } else if ("type".equals(name)) {
+                item.setType(reader.nextString());
+            } else {
+                readField(reader, name, item);
+            }
+        }
+        reader.endObject();
+        return item;
+    }
+}
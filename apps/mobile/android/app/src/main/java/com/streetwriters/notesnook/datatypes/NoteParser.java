@@ -0,0 +1,37 @@
+package com.streetwriters.notesnook.datatypes;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Reads the parts of a {@link Note} the note preview widget draws.
+ */
+public final class NoteParser extends ItemParser<Note> {
+    public static final NoteParser INSTANCE = new NoteParser();
+
+    private NoteParser() {
+    }
+
+    @Override
+    protected Note create() {
+        return new Note();
+    }
+
+    @Override
+    protected void readField(JsonReader reader, String name, Note note) throws IOException {
+        switch (name) {
+            case "title":
+                note.setTitle(reader.nextString());
+                break;
+            case "headline":
+                note.setHeadline(reader.nextString());
+                break;
+            case "dateEdited":
+                note.setDateEdited(reader.nextLong());
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+}
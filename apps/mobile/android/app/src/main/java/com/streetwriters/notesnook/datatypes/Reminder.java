@@ -7,8 +7,6 @@ public class Reminder extends BaseItem {
     private String title;
     private String description;
     private String formattedTime;
-    private String formattedTimeOfDay; // e.g. "5:00 PM"
-    private String formattedDateTime; // e.g. "12-05-2026, 5:00 PM"
     private long triggerDate; // absolute time this reminder next fires
     private String priority; // "silent", "vibrate", "urgent"
     private long date;
@@ -108,22 +106,6 @@ public class Reminder extends BaseItem {
         this.formattedTime = formattedTime;
     }
 
-    public String getFormattedTimeOfDay() {
-        return formattedTimeOfDay;
-    }
-
-    public void setFormattedTimeOfDay(String formattedTimeOfDay) {
-        this.formattedTimeOfDay = formattedTimeOfDay;
-    }
-
-    public String getFormattedDateTime() {
-        return formattedDateTime;
-    }
-
-    public void setFormattedDateTime(String formattedDateTime) {
-        this.formattedDateTime = formattedDateTime;
-    }
-
     public long getTriggerDate() {
         return triggerDate;
     }
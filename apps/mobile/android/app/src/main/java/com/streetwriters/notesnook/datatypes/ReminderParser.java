@@ -0,0 +1,72 @@
+package com.streetwriters.notesnook.datatypes;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the parts of a {@link Reminder} the reminders widget draws, decides visibility by, or
+ * works out its next occurrence from.
+ */
+public final class ReminderParser extends ItemParser<Reminder> {
+    public static final ReminderParser INSTANCE = new ReminderParser();
+
+    private ReminderParser() {
+    }
+
+    @Override
+    protected Reminder create() {
+        return new Reminder();
+    }
+
+    @Override
+    protected void readField(JsonReader reader, String name, Reminder reminder) throws IOException {
+        switch (name) {
+            case "title":
+                reminder.setTitle(reader.nextString());
+                break;
+            case "description":
+                reminder.setDescription(reader.nextString());
+                break;
+            case "formattedTime":
+                reminder.setFormattedTime(reader.nextString());
+                break;
+            case "triggerDate":
+                reminder.setTriggerDate(reader.nextLong());
+                break;
+            case "date":
+                reminder.setDate(reader.nextLong());
+                break;
+            case "mode":
+                reminder.setMode(reader.nextString());
+                break;
+            case "recurringMode":
+                reminder.setRecurringMode(reader.nextString());
+                break;
+            case "selectedDays":
+                reminder.setSelectedDays(readInts(reader));
+                break;
+            case "disabled":
+                reminder.setDisabled(reader.nextBoolean());
+                break;
+            case "snoozeUntil":
+                reminder.setSnoozeUntil(reader.nextLong());
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    private static int[] readInts(JsonReader reader) throws IOException {
+        int[] values = new int[8];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = reader.nextInt();
+        }
+        reader.endArray();
+        return Arrays.copyOf(values, count);
+    }
+}
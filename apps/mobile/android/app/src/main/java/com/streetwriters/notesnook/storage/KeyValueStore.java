@@ -0,0 +1,704 @@
+package com.streetwriters.notesnook.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One named key-value store, held in memory.
+ *
+ * SharedPreferences loads its file on first use and every read blocks until that is done, so the
+ * first read at startup pays for parsing the whole XML file on whatever thread asked. Here the
+ * file is loaded once, on a background thread, into a plain map; reads after that are map lookups
+ * and can be answered synchronously from JS without ever touching the disk.
+ *
+ * A value can be given an expiry time. Once that has passed, reads act as if the key were not
+ * there, and the next {@link #purgeExpired()} removes it for good.
+ *
+ * Writes go to the map first, so they are visible to the very next read. The disk is only ever
+ * touched by the store's own writer thread: writes queue up for it in the order they reached the
+ * map, and whatever has queued by the time it gets to them is merged into one batch and persisted
+ * in a single engine write. Nobody else waits for that unless they ask to, through
+ * {@link Editor#commit()} or {@link #flush()}; in particular there is no equivalent of the
+ * QueuedWork that makes the system wait for every SharedPreferences.apply() when a broadcast
+ * receiver or service finishes.
+ *
+ * Stores live in a {@link LogStorageEngine}; a store that still only exists as a
+ * SharedPreferences file is moved over the first time it is opened.
+ */
+public class KeyValueStore {
+    private static final String TAG = "KeyValueStore";
+    private static final String LOG_SUFFIX = ".log";
+
+    /**
+     * How long a writer thread stays around without work before it exits.
+     */
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 30;
+
+    private static final Map<String, KeyValueStore> stores = new HashMap<>();
+
+    private final Context context;
+    private final String name;
+    /**
+     * Sorted, so that keys sharing a prefix sit next to each other and can be visited without
+     * looking at the rest of the store.
+     */
+    private final ConcurrentNavigableMap<String, String> values = new ConcurrentSkipListMap<>();
+    /**
+     * When each key that was set with an expiry stops being readable. Most keys never expire, so
+     * as long as this is empty reads skip the check altogether.
+     */
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    /**
+     * The only thread that calls the engine. It loads the store, persists writes, and syncs and
+     * compacts the file once a burst of writes is over.
+     */
+    private final ThreadPoolExecutor writer;
+    /**
+     * Changes that have reached memory but not the disk yet. Guarded by the store's lock, as is
+     * {@link #drainQueued}.
+     */
+    private Batch pending;
+    /**
+     * Whether the writer has a {@link #drain} queued that will pick up {@link #pending}.
+     */
+    private boolean drainQueued;
+    private volatile Thread writerThread;
+    private StorageEngine engine;
+
+    private KeyValueStore(Context context, String name) {
+        this.context = context.getApplicationContext();
+        this.name = name;
+        writer = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "KeyValueStore-" + name);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            writerThread = thread;
+            return thread;
+        });
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The store with the given name. The first call starts loading it in the background; reads
+     * made before that finishes wait for it.
+     */
+    public static KeyValueStore get(Context context, String name) {
+        synchronized (stores) {
+            KeyValueStore store = stores.get(name);
+            if (store == null) {
+                store = new KeyValueStore(context, name);
+                stores.put(name, store);
+                store.writer.execute(store::load);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Every store that has been written to disk, whether or not it has been opened yet.
+     */
+    public static List<KeyValueStore> openAll(Context context) {
+        List<KeyValueStore> all = new ArrayList<>();
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) return all;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.endsWith(LOG_SUFFIX)) continue;
+            all.add(get(context, fileName.substring(0, fileName.length() - LOG_SUFFIX.length())));
+        }
+        return all;
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), "kv");
+    }
+
+    /**
+     * Waits until every write made so far to any open store is on disk. Meant for the moments the
+     * process may be about to go away, such as the task being removed.
+     */
+    public static void flushAll() {
+        flushAll(0);
+    }
+
+    /**
+     * Like {@link #flushAll()}, but gives up waiting once {@code timeoutMs} has passed, for
+     * callers on the main thread. The writes carry on regardless.
+     *
+     * @param timeoutMs how long to wait at most, or 0 to wait as long as it takes.
+     */
+    public static void flushAll(long timeoutMs) {
+        List<KeyValueStore> open;
+        synchronized (stores) {
+            open = new ArrayList<>(stores.values());
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (KeyValueStore store : open) {
+            if (timeoutMs == 0) {
+                store.flush(0);
+                continue;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || !store.flush(left)) return;
+        }
+    }
+
+    /**
+     * Starts loading the given stores without waiting for them, so they are already in memory by
+     * the time the first screen reads from them.
+     */
+    public static void preload(Context context, String... names) {
+        for (String name : names) {
+            get(context, name);
+        }
+    }
+
+    /**
+     * Starts loading every store that has been written to disk, such as the ones the app opens
+     * by name from JS, without waiting for them. The directory is listed on a thread of its own.
+     */
+    public static void preloadAll(Context context) {
+        Context appContext = context.getApplicationContext();
+        new Thread(() -> openAll(appContext), TAG).start();
+    }
+
+    private void load() {
+        try {
+            engine = openEngine();
+            engine.load(values, expiries);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not load store " + name, e);
+            // The engine recovers what it can from a damaged log itself, so this is the file not
+            // opening at all (no space, no permission). Fall back to SharedPreferences rather
+            // than failing every write from here on. Once a store has been moved to a log that
+            // only holds what was written the last time this happened, so the store may come up
+            // empty until the app writes it again.
+            values.clear();
+            expiries.clear();
+            SharedPreferencesEngine fallback = new SharedPreferencesEngine(context, name);
+            fallback.load(values, expiries);
+            engine = fallback;
+        } finally {
+            loaded.countDown();
+        }
+        // Whatever expired while the app was not running does not need to stay in memory.
+        purgeExpired();
+    }
+
+    private StorageEngine openEngine() throws IOException {
+        File file = new File(getDirectory(context), name + LOG_SUFFIX);
+        if (!file.exists()) migrate(file);
+        return new LogStorageEngine(file);
+    }
+
+    /**
+     * Moves a store that was written by SharedPreferences into a log file. The log replaces the
+     * old file in one step, and the old file is only deleted once that has happened, so a crash
+     * at any point leaves one complete copy to start from.
+     */
+    private void migrate(File file) throws IOException {
+        Map<String, String> existing = new LinkedHashMap<>();
+        Map<String, Long> existingExpiries = new HashMap<>();
+        SharedPreferencesEngine preferences = new SharedPreferencesEngine(context, name);
+        preferences.load(existing, existingExpiries);
+        new LogStorageEngine(file).create(existing, existingExpiries);
+        preferences.delete();
+        if (!existing.isEmpty()) {
+            Log.i(TAG, "Moved " + existing.size() + " values of " + name + " out of SharedPreferences");
+        }
+    }
+
+    /**
+     * Hands the changes to the writer thread. Changes that arrive while an earlier batch is still
+     * waiting for it are merged into that batch, so a burst of small writes costs one engine
+     * write. Must be called holding the store's lock, right after the same changes were made to
+     * memory, so the disk sees them in the same order.
+     */
+    private void enqueue(Map<String, String> puts, Map<String, Long> putExpiries, Set<String> removes) {
+        if (pending == null) pending = new Batch();
+        pending.merge(puts, putExpiries, removes);
+        if (drainQueued) return;
+        drainQueued = true;
+        writer.execute(this::drain);
+    }
+
+    /**
+     * Persists whatever has queued up. Runs on the writer thread.
+     *
+     * A batch the engine fails to write is put back in front of anything queued since, so memory
+     * never holds changes the disk will not get: it is tried again with the next write, or the
+     * next {@link #flush()}, whichever comes first.
+     *
+     * @return whether everything queued is on disk.
+     */
+    private boolean drain() {
+        Batch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+            drainQueued = false;
+        }
+        if (batch == null) return true;
+        try {
+            engine.write(batch.puts, batch.expiries, batch.removes);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to store " + name + ", will retry", e);
+            synchronized (this) {
+                if (pending != null) batch.merge(pending.puts, pending.expiries, pending.removes);
+                pending = batch;
+            }
+            return false;
+        }
+        // Once the burst is over, get it onto the disk and tidy up after it.
+        if (writer.getQueue().isEmpty()) maintain();
+        return true;
+    }
+
+    private void maintain() {
+        try {
+            engine.sync();
+            engine.compact();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not sync store " + name, e);
+        }
+    }
+
+    /**
+     * Runs the task on the writer thread, after everything queued before it, and waits for it, at
+     * most {@code timeoutMs} unless that is 0.
+     */
+    private <T> T runOnWriter(Callable<T> task, T failed, long timeoutMs) {
+        try {
+            // Waiting for the writer on the writer itself would never return.
+            if (Thread.currentThread() == writerThread) return task.call();
+            Future<T> result = writer.submit(task);
+            return timeoutMs == 0 ? result.get() : result.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed;
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Gave up waiting for store " + name + " to flush");
+            return failed;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not flush store " + name, e.getCause());
+            return failed;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not flush store " + name, e);
+            return failed;
+        }
+    }
+
+    /**
+     * Waits until every write made so far is on disk.
+     *
+     * @return whether they were all persisted.
+     */
+    public boolean flush() {
+        return flush(0);
+    }
+
+    /**
+     * Like {@link #flush()}, but gives up waiting once {@code timeoutMs} has passed, unless that
+     * is 0.
+     *
+     * @return whether they were all persisted in time.
+     */
+    public boolean flush(long timeoutMs) {
+        awaitLoaded();
+        return runOnWriter(() -> {
+            boolean written = drain();
+            engine.sync();
+            return written;
+        }, false, timeoutMs);
+    }
+
+    private void awaitLoaded() {
+        if (loaded.getCount() == 0) return;
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The value stored under the key, or null if there is none.
+     */
+    public String getString(String key) {
+        awaitLoaded();
+        String value = values.get(key);
+        return value == null || isExpired(key, System.currentTimeMillis()) ? null : value;
+    }
+
+    public boolean contains(String key) {
+        return getString(key) != null;
+    }
+
+    /**
+     * A read-only view of everything in the store. Unlike SharedPreferences.getAll() this does
+     * not copy the store, and iterating it while it is being written to is safe.
+     */
+    public Map<String, String> getAll() {
+        awaitLoaded();
+        return visible(values);
+    }
+
+    /**
+     * A read-only view of the keys from {@code from} (inclusive) up to {@code to} (exclusive), in
+     * order.
+     */
+    public SortedMap<String, String> range(String from, String to) {
+        awaitLoaded();
+        return visible(values.subMap(from, true, to, false));
+    }
+
+    /**
+     * A read-only view of the keys starting with the prefix, in order.
+     */
+    public SortedMap<String, String> withPrefix(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            awaitLoaded();
+            return visible(values);
+        }
+        // Every key with the prefix sorts below the prefix followed by the highest char there is.
+        return range(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /**
+     * One page of the keys starting with the prefix, in order.
+     *
+     * @param cursor the cursor of the previous page, or null for the first one.
+     * @param limit  the most keys to return, or 0 for all of them.
+     */
+    public Page scan(String prefix, String cursor, int limit) {
+        SortedMap<String, String> matches = withPrefix(prefix);
+        // The cursor is the last key already returned, so the next page starts just after it.
+        if (cursor != null) matches = matches.tailMap(cursor + '\0');
+
+        List<String> keys = new ArrayList<>();
+        for (String key : matches.keySet()) {
+            if (limit > 0 && keys.size() == limit) {
+                return new Page(keys, keys.get(keys.size() - 1));
+            }
+            keys.add(key);
+        }
+        return new Page(keys, null);
+    }
+
+    private boolean isExpired(String key, long now) {
+        if (expiries.isEmpty()) return false;
+        Long expiresAt = expiries.get(key);
+        return expiresAt != null && expiresAt <= now;
+    }
+
+    /**
+     * The map itself while nothing in the store expires, which is the usual case. Otherwise a view
+     * of it that skips keys as it comes across ones that have expired, which are only ever the
+     * few that expired since the last {@link #purgeExpired()}. Either way nothing is copied.
+     */
+    private SortedMap<String, String> visible(SortedMap<String, String> map) {
+        if (expiries.isEmpty()) return Collections.unmodifiableSortedMap(map);
+        return new Unexpired(map, System.currentTimeMillis());
+    }
+
+    /**
+     * A read-only view of a map without the keys that had expired at {@code now}. Views of parts
+     * of it keep the same time, so a scan of it does not change its mind half way through.
+     */
+    private final class Unexpired extends AbstractMap<String, String> implements SortedMap<String, String> {
+        private final SortedMap<String, String> map;
+        private final long now;
+
+        Unexpired(SortedMap<String, String> map, long now) {
+            this.map = map;
+            this.now = now;
+        }
+
+        @Override
+        public String get(Object key) {
+            String value = map.get(key);
+            return value == null || isExpired((String) key, now) ? null : value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new UnexpiredIterator(map.entrySet().iterator(), now);
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Iterator<Entry<String, String>> it = iterator(); it.hasNext(); it.next()) size++;
+                    return size;
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return map.comparator();
+        }
+
+        @Override
+        public SortedMap<String, String> subMap(String fromKey, String toKey) {
+            return new Unexpired(map.subMap(fromKey, toKey), now);
+        }
+
+        @Override
+        public SortedMap<String, String> headMap(String toKey) {
+            return new Unexpired(map.headMap(toKey), now);
+        }
+
+        @Override
+        public SortedMap<String, String> tailMap(String fromKey) {
+            return new Unexpired(map.tailMap(fromKey), now);
+        }
+
+        @Override
+        public String firstKey() {
+            Iterator<Entry<String, String>> it = entrySet().iterator();
+            if (!it.hasNext()) throw new NoSuchElementException();
+            return it.next().getKey();
+        }
+
+        @Override
+        public String lastKey() {
+            // Walks back from the end, skipping expired keys, rather than over the whole map.
+            SortedMap<String, String> rest = map;
+            while (!rest.isEmpty()) {
+                String key = rest.lastKey();
+                if (!isExpired(key, now)) return key;
+                rest = rest.headMap(key);
+            }
+            throw new NoSuchElementException();
+        }
+    }
+
+    private final class UnexpiredIterator implements Iterator<Map.Entry<String, String>> {
+        private final Iterator<Map.Entry<String, String>> entries;
+        private final long now;
+        private Map.Entry<String, String> next;
+
+        UnexpiredIterator(Iterator<Map.Entry<String, String>> entries, long now) {
+            this.entries = entries;
+            this.now = now;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                if (!isExpired(entry.getKey(), now)) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Map.Entry<String, String> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+
+    /**
+     * Removes every key whose expiry has passed, from memory and from disk.
+     *
+     * @return how many keys were removed.
+     */
+    public int purgeExpired() {
+        awaitLoaded();
+        if (expiries.isEmpty()) return 0;
+
+        long now = System.currentTimeMillis();
+        Editor edit = edit();
+        int count = 0;
+        for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+            if (entry.getValue() > now) continue;
+            edit.remove(entry.getKey());
+            count++;
+        }
+        edit.apply();
+        return count;
+    }
+
+    /**
+     * Syncs the store and reclaims the space of overwritten and removed values, now rather than
+     * after the next write.
+     */
+    public void compact() {
+        awaitLoaded();
+        runOnWriter(() -> {
+            drain();
+            engine.compact();
+            engine.sync();
+            return null;
+        }, null, 0);
+    }
+
+    public static final class Page {
+        public final List<String> keys;
+        /**
+         * Where the next page starts, or null if this is the last one.
+         */
+        public final String cursor;
+
+        Page(List<String> keys, String cursor) {
+            this.keys = keys;
+            this.cursor = cursor;
+        }
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * Collects changes and applies them together, the same way SharedPreferences.Editor does.
+     */
+    public class Editor {
+        private final Map<String, String> puts = new HashMap<>();
+        private final Map<String, Long> putExpiries = new HashMap<>();
+        private final Set<String> removes = new HashSet<>();
+
+        public Editor putString(String key, String value) {
+            if (value == null) return remove(key);
+            removes.remove(key);
+            putExpiries.remove(key);
+            puts.put(key, value);
+            return this;
+        }
+
+        /**
+         * Sets a value that reads as missing once {@code expiresAt} (in epoch milliseconds) has
+         * passed.
+         */
+        public Editor putString(String key, String value, long expiresAt) {
+            putString(key, value);
+            if (value != null) putExpiries.put(key, expiresAt);
+            return this;
+        }
+
+        public Editor remove(String key) {
+            puts.remove(key);
+            putExpiries.remove(key);
+            removes.add(key);
+            return this;
+        }
+
+        /**
+         * Applies the changes to memory right away and leaves persisting them to the writer
+         * thread.
+         */
+        public void apply() {
+            if (puts.isEmpty() && removes.isEmpty()) return;
+            write();
+        }
+
+        /**
+         * Applies the changes and waits for them, and everything written before them, to reach
+         * the disk.
+         *
+         * @return whether the changes were persisted.
+         */
+        public boolean commit() {
+            if (puts.isEmpty() && removes.isEmpty()) return true;
+            write();
+            return flush();
+        }
+
+        private void write() {
+            awaitLoaded();
+            // Hold the store while memory changes and the batch is queued, so concurrent editors
+            // reach memory and disk in the same order.
+            synchronized (KeyValueStore.this) {
+                for (String key : removes) {
+                    values.remove(key);
+                    expiries.remove(key);
+                }
+                for (Map.Entry<String, String> entry : puts.entrySet()) {
+                    String key = entry.getKey();
+                    values.put(key, entry.getValue());
+                    // Setting a key again without an expiry makes it permanent.
+                    Long expiresAt = putExpiries.get(key);
+                    if (expiresAt != null) expiries.put(key, expiresAt);
+                    else expiries.remove(key);
+                }
+                enqueue(puts, putExpiries, removes);
+            }
+        }
+    }
+
+    /**
+     * Changes waiting for the writer thread, in the shape {@link StorageEngine#write} takes them.
+     */
+    private static final class Batch {
+        final Map<String, String> puts = new HashMap<>();
+        final Map<String, Long> expiries = new HashMap<>();
+        final Set<String> removes = new HashSet<>();
+
+        /**
+         * Adds changes made after the ones already here. The removals go first, the same as they
+         * did in memory.
+         */
+        void merge(Map<String, String> newPuts, Map<String, Long> newExpiries, Set<String> newRemoves) {
+            for (String key : newRemoves) {
+                puts.remove(key);
+                expiries.remove(key);
+                removes.add(key);
+            }
+            for (Map.Entry<String, String> entry : newPuts.entrySet()) {
+                String key = entry.getKey();
+                removes.remove(key);
+                puts.put(key, entry.getValue());
+                Long expiresAt = newExpiries.get(key);
+                if (expiresAt != null) expiries.put(key, expiresAt);
+                else expiries.remove(key);
+            }
+        }
+    }
+}
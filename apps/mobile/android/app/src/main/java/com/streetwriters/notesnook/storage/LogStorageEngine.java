@@ -0,0 +1,537 @@
+package com.streetwriters.notesnook.storage;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps a store as an append-only log in a memory-mapped file.
+ *
+ * SharedPreferences rewrites its whole file on every change, so updating one widget note meant
+ * writing out every other note and the reminders list with it. Here a change only appends the
+ * keys that changed, and since the file is mapped, appending is a memory copy rather than a
+ * system call. The kernel writes the pages back on its own; {@link #sync()} forces it.
+ *
+ * The file starts with an 8 byte header (magic, version), followed by records. Each record holds
+ * one batch of changes, so a batch is either read back whole or not at all:
+ * <pre>
+ *   int   length     of the payload
+ *   int   checksum   CRC32 of the payload
+ *   byte[length]     payload: one or more operations
+ * </pre>
+ * and each operation is
+ * <pre>
+ *   byte  type       PUT, PUT_EXPIRING or REMOVE, plus the COMPRESSED flag
+ *   int   key length, key (UTF-8)
+ *   int   value length, value (UTF-8), PUT and PUT_EXPIRING only
+ *   long  expiry time in epoch milliseconds, PUT_EXPIRING only
+ * </pre>
+ * A value longer than the compression threshold is deflated if that makes it smaller, which it
+ * nearly always does for the JSON we keep here. Its operation then carries the COMPRESSED flag,
+ * and the value is stored as its inflated length followed by the deflated bytes. Values written
+ * without the flag, including everything from before compression existed, read as they are.
+ * The file is grown in zero-filled steps ahead of the writes, so a length of zero marks the end
+ * of the log. A record that is cut short or fails its checksum (the process died, or the device
+ * lost power, halfway through writing it) ends the log as well, and is cleared so the next
+ * record can take its place. So does a record that passes its checksum but cannot be read, such
+ * as one with an operation from a newer version; since that one was written whole, the file is
+ * first copied aside (with {@link #CORRUPT_SUFFIX}) so nothing is lost for good. Either way the
+ * records before it load as usual, and the next load does not trip over it again.
+ *
+ * Overwritten and removed values stay in the file until {@link #compact()} copies the live ones
+ * into a fresh file. Which ones are live is tracked by the index, from each key to where its
+ * current value sits in the file.
+ */
+public class LogStorageEngine implements StorageEngine {
+    private static final String TAG = "LogStorageEngine";
+
+    private static final int MAGIC = 0x4E4E4B56; // "NNKV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Where a log that could only be partly read is copied before the rest of it is dropped.
+     */
+    static final String CORRUPT_SUFFIX = ".corrupt";
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte PUT_EXPIRING = 3;
+    static final byte COMPRESSED = 0x40;
+
+    /**
+     * Values up to this many bytes are stored as they are: below it the deflate header eats most
+     * of the savings, and inflating costs more than reading the few extra bytes.
+     */
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * The file grows in steps of at least this much, so most appends fit in the existing mapping.
+     */
+    private static final int MIN_GROWTH = 64 * 1024;
+
+    /**
+     * Below this size the file is left alone even if most of it is stale: it is loaded in no time
+     * either way, and compacting it would only cost writes.
+     */
+    private static final int MIN_COMPACT_SIZE = 64 * 1024;
+
+    private final File file;
+    private final int compressionThreshold;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Where the next record goes.
+     */
+    private int end;
+
+    /**
+     * Bytes taken up by operations that still hold a key's current value. Everything else
+     * between the header and {@link #end} is stale.
+     */
+    private long liveBytes;
+
+    private final Map<String, Slot> index = new HashMap<>();
+
+    /**
+     * Where the operation holding a key's current value sits in the file.
+     */
+    private static final class Slot {
+        final int offset;
+        final int size;
+
+        Slot(int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    public LogStorageEngine(File file) {
+        this(file, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold values longer than this many bytes are compressed. Pass
+     *                             {@link Integer#MAX_VALUE} to store every value as it is.
+     */
+    public LogStorageEngine(File file, int compressionThreshold) {
+        this.file = file;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Writes a new log holding the given values, replacing the file in one step so that a crash
+     * part way through leaves either no log or a complete one. Used to move an existing store over.
+     */
+    public synchronized void create(Map<String, String> values, Map<String, Long> expiries) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            writePut(out, entry.getKey(), entry.getValue(), expiries.get(entry.getKey()));
+        }
+        writeFile(file, payload.toByteArray());
+    }
+
+    private static void writeFile(File file, byte[] payload) throws IOException {
+        File temp = writeTemp(file, payload);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Writes a complete log to a file next to {@code file}, synced, for it to be renamed over it.
+     */
+    private static File writeTemp(File file, byte[] payload) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(stream)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            if (payload.length > 0) {
+                out.writeInt(payload.length);
+                out.writeInt(checksum(payload, 0, payload.length));
+                out.write(payload);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        return temp;
+    }
+
+    @Override
+    public synchronized void load(Map<String, String> into, Map<String, Long> expiries) throws IOException {
+        if (!file.exists()) writeFile(file, new byte[0]);
+        open();
+
+        int capacity = buffer.capacity();
+        if (capacity < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            // Nothing in it can be read, so start over rather than fail every load from now on.
+            close();
+            setAside("not a key-value log");
+            writeFile(file, new byte[0]);
+            open();
+            capacity = buffer.capacity();
+        }
+
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(position);
+            if (length == 0) break;
+
+            int payloadStart = position + RECORD_HEADER_SIZE;
+            if (length < 0 || length > capacity - payloadStart) {
+                clearTail(position, "cut short");
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            read(payloadStart, payload);
+            if (checksum(payload, 0, length) != buffer.getInt(position + 4)) {
+                clearTail(position, "corrupt");
+                break;
+            }
+
+            List<Operation> operations;
+            try {
+                operations = readRecord(payload, payloadStart);
+            } catch (IOException | BufferUnderflowException e) {
+                // The checksum matched, so this was written by a newer version we do not know or
+                // by a bug. Keep what came before it, and a copy of the whole file in case the
+                // rest is worth having back.
+                Log.w(TAG, "Could not read the record at " + position + " of " + file.getName(), e);
+                setAside("unreadable");
+                clearTail(position, "unreadable");
+                break;
+            }
+            for (Operation operation : operations) {
+                operation.apply(this, into, expiries);
+            }
+            position = payloadStart + length;
+        }
+        end = position;
+    }
+
+    /**
+     * One operation of a record, read but not applied yet, so that a record that turns out to be
+     * unreadable part way through leaves nothing of itself behind.
+     */
+    private static final class Operation {
+        final String key;
+        /**
+         * Null for a removal.
+         */
+        final String value;
+        final Long expiresAt;
+        final Slot slot;
+
+        Operation(String key, String value, Long expiresAt, Slot slot) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.slot = slot;
+        }
+
+        void apply(LogStorageEngine engine, Map<String, String> into, Map<String, Long> expiries) {
+            if (value == null) {
+                into.remove(key);
+                expiries.remove(key);
+            } else {
+                into.put(key, value);
+                if (expiresAt != null) expiries.put(key, expiresAt);
+                else expiries.remove(key);
+            }
+            engine.track(key, slot);
+        }
+    }
+
+    private List<Operation> readRecord(byte[] payload, int payloadStart) throws IOException {
+        List<Operation> operations = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        while (in.hasRemaining()) {
+            int start = in.position();
+            byte flags = in.get();
+            byte type = (byte) (flags & ~COMPRESSED);
+            String key = readString(in);
+            if (type == PUT || type == PUT_EXPIRING) {
+                String value = (flags & COMPRESSED) != 0 ? readCompressedString(in) : readString(in);
+                Long expiresAt = type == PUT_EXPIRING ? in.getLong() : null;
+                operations.add(new Operation(key, value, expiresAt,
+                        new Slot(payloadStart + start, in.position() - start)));
+            } else if (type == REMOVE) {
+                operations.add(new Operation(key, null, null, null));
+            } else {
+                throw new IOException("Unknown operation " + type + " in " + file);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Keeps a copy of the log next to it as it is now, before any of it is dropped, replacing the
+     * copy from any earlier time this happened.
+     */
+    private void setAside(String reason) {
+        File copy = new File(file.getPath() + CORRUPT_SUFFIX);
+        Log.w(TAG, "Keeping the " + reason + " " + file.getName() + " as " + copy.getName());
+        if (buffer != null) buffer.force();
+        try (FileInputStream in = new FileInputStream(file);
+             FileOutputStream out = new FileOutputStream(copy)) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) > 0) out.write(chunk, 0, read);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not copy " + file.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized void write(Map<String, String> puts, Map<String, Long> expiries, Set<String> removes) throws IOException {
+        if (puts.isEmpty() && removes.isEmpty()) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String key : removes) {
+            out.writeByte(REMOVE);
+            writeString(out, key);
+        }
+        Map<String, Slot> slots = new HashMap<>();
+        for (Map.Entry<String, String> entry : puts.entrySet()) {
+            int start = out.size();
+            writePut(out, entry.getKey(), entry.getValue(), expiries.get(entry.getKey()));
+            slots.put(entry.getKey(), new Slot(start, out.size() - start));
+        }
+        byte[] payload = bytes.toByteArray();
+
+        int payloadStart = end + RECORD_HEADER_SIZE;
+        ensureCapacity(payloadStart + payload.length);
+
+        // The length goes in last: until it is there the record does not exist, so a crash
+        // before that leaves the log exactly as it was.
+        ByteBuffer target = buffer.duplicate();
+        target.position(payloadStart);
+        target.put(payload);
+        buffer.putInt(end + 4, checksum(payload, 0, payload.length));
+        buffer.putInt(end, payload.length);
+        end = payloadStart + payload.length;
+
+        for (String key : removes) track(key, null);
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            Slot slot = entry.getValue();
+            track(entry.getKey(), new Slot(payloadStart + slot.offset, slot.size));
+        }
+    }
+
+    @Override
+    public synchronized void sync() {
+        if (buffer != null) buffer.force();
+    }
+
+    @Override
+    public synchronized void compact() throws IOException {
+        if (buffer == null) return;
+        long used = end - HEADER_SIZE;
+        if (end < MIN_COMPACT_SIZE || liveBytes * 2 > used) return;
+
+        // The live operations are copied as they are; only where they end up changes.
+        byte[] payload = new byte[(int) liveBytes];
+        Map<String, Slot> moved = new HashMap<>();
+        int position = 0;
+        for (Map.Entry<String, Slot> entry : index.entrySet()) {
+            Slot slot = entry.getValue();
+            ByteBuffer source = buffer.duplicate();
+            source.position(slot.offset);
+            source.get(payload, position, slot.size);
+            moved.put(entry.getKey(), new Slot(HEADER_SIZE + RECORD_HEADER_SIZE + position, slot.size));
+            position += slot.size;
+        }
+
+        // The new file is written and mapped before it replaces the old one, so if any of that
+        // fails (the disk is full, say) the old mapping and index are still there to carry on with.
+        File temp = writeTemp(file, payload);
+        FileChannel compacted = null;
+        MappedByteBuffer mapped;
+        try {
+            compacted = new RandomAccessFile(temp, "rw").getChannel();
+            mapped = compacted.map(FileChannel.MapMode.READ_WRITE, 0, compacted.size());
+            if (!temp.renameTo(file)) throw new IOException("Could not replace " + file);
+        } catch (IOException e) {
+            if (compacted != null) closeQuietly(compacted);
+            temp.delete();
+            throw e;
+        }
+
+        // The mapping follows the file it was made from, which is now the log.
+        closeQuietly(channel);
+        channel = compacted;
+        buffer = mapped;
+        index.clear();
+        index.putAll(moved);
+        end = payload.length == 0 ? HEADER_SIZE : HEADER_SIZE + RECORD_HEADER_SIZE + payload.length;
+        Log.i(TAG, "Compacted " + file.getName() + " from " + (used + HEADER_SIZE) + " to " + end + " bytes");
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) channel.close();
+        channel = null;
+        buffer = null;
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close " + file.getName(), e);
+        }
+    }
+
+    private void open() throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        channel = access.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    private void ensureCapacity(int required) throws IOException {
+        if (required <= buffer.capacity()) return;
+        long capacity = Math.max(required, (long) buffer.capacity() + Math.max(MIN_GROWTH, buffer.capacity() / 2));
+        // Mapping past the end of the file extends it, and the new part reads as zeros.
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void track(String key, Slot slot) {
+        Slot previous = slot == null ? index.remove(key) : index.put(key, slot);
+        if (previous != null) liveBytes -= previous.size;
+        if (slot != null) liveBytes += slot.size;
+    }
+
+    private void clearTail(int position, String reason) {
+        Log.w(TAG, "Dropping the " + reason + " end of " + file.getName() + " at " + position);
+        byte[] zeros = new byte[4096];
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        while (target.hasRemaining()) {
+            target.put(zeros, 0, Math.min(zeros.length, target.remaining()));
+        }
+        buffer.force();
+    }
+
+    private void read(int position, byte[] into) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(into);
+    }
+
+    private void writePut(DataOutputStream out, String key, String value, Long expiresAt) throws IOException {
+        byte type = expiresAt == null ? PUT : PUT_EXPIRING;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = bytes.length > compressionThreshold ? deflate(bytes) : null;
+
+        out.writeByte(compressed != null ? type | COMPRESSED : type);
+        writeString(out, key);
+        if (compressed != null) {
+            out.writeInt(bytes.length);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        if (expiresAt != null) out.writeLong(expiresAt);
+    }
+
+    /**
+     * The deflated bytes, or null if deflating does not make them smaller.
+     */
+    private byte[] deflate(byte[] bytes) {
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        // Anything that does not fit in here is not worth compressing.
+        byte[] output = new byte[bytes.length - 1];
+        int length = 0;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(output, length) : null;
+    }
+
+    private String readCompressedString(ByteBuffer in) throws IOException {
+        int inflatedLength = in.getInt();
+        int length = in.getInt();
+        if (inflatedLength < 0 || length < 0 || length > in.remaining()) {
+            throw new IOException("Bad compressed length " + length);
+        }
+
+        byte[] inflated = new byte[inflatedLength];
+        inflater.reset();
+        inflater.setInput(in.array(), in.position(), length);
+        try {
+            int read = 0;
+            while (read < inflatedLength && !inflater.finished()) {
+                int count = inflater.inflate(inflated, read, inflatedLength - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                read += count;
+            }
+            if (read != inflatedLength) throw new IOException("Compressed value cut short");
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed value", e);
+        }
+        in.position(in.position() + length);
+        return new String(inflated, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) throw new IOException("Bad string length " + length);
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
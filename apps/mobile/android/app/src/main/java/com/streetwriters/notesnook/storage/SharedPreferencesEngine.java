@@ -0,0 +1,87 @@
+package com.streetwriters.notesnook.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores values in a SharedPreferences file, as the app always used to.
+ *
+ * Only used when the log file cannot be opened, so a broken file system degrades to the old
+ * behaviour rather than to losing every write, and to read stores written before the log existed.
+ * Expiry times go in a second file next to the values, so the values file keeps the same layout
+ * it always had.
+ */
+public class SharedPreferencesEngine implements StorageEngine {
+    private final Context context;
+    private final String name;
+    private final SharedPreferences preferences;
+    private final SharedPreferences expiryPreferences;
+
+    public SharedPreferencesEngine(Context context, String name) {
+        this.context = context;
+        this.name = name;
+        this.preferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        this.expiryPreferences = context.getSharedPreferences(getExpiryName(name), Context.MODE_PRIVATE);
+    }
+
+    private static String getExpiryName(String name) {
+        return name + ".expiry";
+    }
+
+    @Override
+    public void load(Map<String, String> into, Map<String, Long> expiries) {
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            // Every value we write is a string; anything else was not put there by us.
+            if (entry.getValue() instanceof String) {
+                into.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        for (Map.Entry<String, ?> entry : expiryPreferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long && into.containsKey(entry.getKey())) {
+                expiries.put(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void write(Map<String, String> puts, Map<String, Long> expiries, Set<String> removes) {
+        SharedPreferences.Editor edit = preferences.edit();
+        SharedPreferences.Editor expiryEdit = expiryPreferences.edit();
+        for (String key : removes) {
+            edit.remove(key);
+            expiryEdit.remove(key);
+        }
+        for (Map.Entry<String, String> entry : puts.entrySet()) {
+            String key = entry.getKey();
+            edit.putString(key, entry.getValue());
+            Long expiresAt = expiries.get(key);
+            if (expiresAt != null) expiryEdit.putLong(key, expiresAt);
+            else expiryEdit.remove(key);
+        }
+        edit.apply();
+        expiryEdit.apply();
+    }
+
+    @Override
+    public void sync() {
+        // An empty commit is queued behind every earlier apply(), so it returns once they are on
+        // disk.
+        preferences.edit().commit();
+    }
+
+    @Override
+    public void compact() {
+        // Every write rewrites the whole file, so there is never anything to reclaim.
+    }
+
+    /**
+     * Deletes both files, once their contents have been moved elsewhere.
+     */
+    void delete() {
+        context.deleteSharedPreferences(name);
+        context.deleteSharedPreferences(getExpiryName(name));
+    }
+}
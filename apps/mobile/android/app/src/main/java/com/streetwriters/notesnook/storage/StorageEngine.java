@@ -0,0 +1,39 @@
+package com.streetwriters.notesnook.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where a {@link KeyValueStore} keeps its data on disk.
+ *
+ * The store itself always works from memory; an engine only has to read everything back once
+ * when the store is opened and persist each batch of changes after that. Calls are never made
+ * concurrently: the store serializes them.
+ */
+public interface StorageEngine {
+
+    /**
+     * Reads every stored value into {@code into}, and the expiry time of those that have one into
+     * {@code expiries}.
+     */
+    void load(Map<String, String> into, Map<String, Long> expiries) throws IOException;
+
+    /**
+     * Persists one batch of changes. The removals are applied before the puts, and the two never
+     * share a key. {@code expiries} holds the expiry time of those puts that have one; a put
+     * without one replaces any expiry the key had before.
+     */
+    void write(Map<String, String> puts, Map<String, Long> expiries, Set<String> removes) throws IOException;
+
+    /**
+     * Waits until everything written so far is on disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Reclaims space taken up by values that have since been overwritten or removed, if there is
+     * enough of it to be worth the effort.
+     */
+    void compact() throws IOException;
+}
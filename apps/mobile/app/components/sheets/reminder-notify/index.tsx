@@ -94,6 +94,7 @@ export default function ReminderNotify({
     await Notifications.scheduleNotification(
       await db.reminders?.reminder(reminder?.id as string)
     );
+    Notifications.updateReminderForWidget(reminder?.id as string);
     close?.();
   };
 
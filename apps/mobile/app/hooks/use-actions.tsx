@@ -517,6 +517,7 @@ export const useActions = ({
             disabled: !item.disabled
           });
           Notifications.scheduleNotification(item);
+          Notifications.updateReminderForWidget(item.id);
           useRelationStore.getState().update();
           Navigation.queueRoutesForUpdate();
         }
@@ -286,6 +286,7 @@ export default function AddReminder(props: NavigationProps<"AddReminder">) {
         });
       }
       Notifications.scheduleNotification(_reminder as Reminder);
+      if (_reminder) Notifications.updateReminderForWidget(_reminder.id);
       Navigation.queueRoutesForUpdate();
       useRelationStore.getState().update();
       handleBackNavigation();
@@ -42,12 +42,9 @@ const NoteItem = (props: {
     <TouchableOpacity
       activeOpacity={0.7}
       onPress={() => {
+        if (!item) return;
         const widgetId = NotesnookModule.getWidgetId();
-        NotesnookModule.setString(
-          "appPreview",
-          String(widgetId),
-          JSON.stringify(item)
-        );
+        NotesnookModule.setWidgetNote(widgetId, item.id, JSON.stringify(item));
         setTimeout(() => {
           NotesnookModule.saveAndFinish();
         });
@@ -34,6 +34,7 @@ import SettingsService from "../../../services/settings";
 import { Settings, useSettingStore } from "../../../stores/use-setting-store";
 import { useUserStore } from "../../../stores/use-user-store";
 import { MenuItemsList } from "../../../utils/menu-items";
+import { NotesnookModule } from "../../../utils/notesnook-module";
 import { verifyUserWithApplock } from "../functions";
 import { strings } from "@notesnook/intl";
 import { isFeatureAvailable } from "@notesnook/common";
@@ -163,10 +164,11 @@ export const TrashIntervalPicker = createSettingsPicker({
 export const DateFormatPicker = createSettingsPicker({
   getValue: () => db.settings.getDateFormat(),
   updateValue: async (item) => {
-    db.settings.setDateFormat(item);
+    await db.settings.setDateFormat(item);
     useSettingStore.setState({
       dateFormat: item
     });
+    NotesnookModule.setReminderFormats(item, db.settings.getTimeFormat());
   },
   formatValue: (item) => {
     return `${item} (${dayjs().format(item)})`;
@@ -222,10 +224,11 @@ const TimeFormats = {
 export const TimeFormatPicker = createSettingsPicker({
   getValue: () => db.settings.getTimeFormat(),
   updateValue: async (item) => {
-    db.settings.setTimeFormat(item);
+    await db.settings.setTimeFormat(item);
     useSettingStore.setState({
       timeFormat: item
     });
+    NotesnookModule.setReminderFormats(db.settings.getDateFormat(), item);
   },
   formatValue: (item) => {
     return `${strings[item]()} (${dayjs().format(TimeFormats[item])})`;
@@ -152,13 +152,37 @@ const onBoot = async () => {
   }
 };
 
-const registerHeadlessTask = () =>
+/**
+ * Run by the reminders widget when a reminder is snoozed or marked done from
+ * it, so its notifications change right away rather than the next time the
+ * app sets up reminders.
+ */
+const onReminderAction = async () => {
+  try {
+    if (!db.isInitialized) {
+      await setupDatabase();
+      await db.init();
+    }
+    await Notifications.applyWidgetReminderActions();
+  } catch (e) {
+    DatabaseLogger.error(e as Error);
+  }
+};
+
+const registerHeadlessTask = () => {
   AppRegistry.registerHeadlessTask(
     "com.streetwriters.notesnook.BOOT_TASK",
     () => {
       return onBoot;
     }
   );
+  AppRegistry.registerHeadlessTask(
+    "com.streetwriters.notesnook.REMINDER_ACTION_TASK",
+    () => {
+      return onReminderAction;
+    }
+  );
+};
 export const BackgroundSync = {
   start,
   registerHeadlessTask,
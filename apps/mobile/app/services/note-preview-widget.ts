@@ -28,12 +28,22 @@ export const NotePreviewWidget = {
     clearTimeout(timer);
     timer = setTimeout(async () => {
       const noteIds = await NotesnookModule.getWidgetNotes();
+      const batch: { id: string; patch: string }[] = [];
       for (const id of noteIds) {
         const newNote = await db.notes.note(id);
         if (!newNote) continue;
 
-        NotesnookModule.updateWidgetNote(id, JSON.stringify(newNote));
+        // The widget only draws these, so there is no need to send the rest.
+        batch.push({
+          id,
+          patch: JSON.stringify({
+            title: newNote.title,
+            headline: newNote.headline,
+            dateEdited: newNote.dateEdited
+          })
+        });
       }
+      if (batch.length) NotesnookModule.updateWidgetNotes(batch);
       // Redraw from the widgets that actually exist rather than only the ones we
       // have notes for. After app data is cleared there are none, and the widgets
       // would otherwise keep showing content that no longer exists.
@@ -17,7 +17,6 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
-import { getFormattedDate, getFormattedReminderTime } from "@notesnook/common";
 import {
   getUpcomingReminderTime,
   isReminderActive,
@@ -182,7 +181,7 @@ const onEvent = async ({ type, detail }: Event) => {
         );
         useRelationStore.getState().update();
         useReminderStore.getState().refresh();
-        updateRemindersForWidget();
+        updateReminderForWidget(reminder.id);
         break;
       }
       case "REMINDER_DISABLE": {
@@ -200,7 +199,7 @@ const onEvent = async ({ type, detail }: Event) => {
         );
         useRelationStore.getState().update();
         useReminderStore.getState().refresh();
-        updateRemindersForWidget();
+        updateReminderForWidget(reminder.id);
         break;
       }
       case strings.unpin(): {
@@ -264,18 +263,41 @@ const onEvent = async ({ type, detail }: Event) => {
   }
 };
 
-type ReminderWithFormattedTime = Reminder & {
-  formattedTime?: string;
+type WidgetReminder = Reminder & {
   triggerDate?: number;
-  formattedTimeOfDay?: string;
-  formattedDateTime?: string;
 };
 
 const RECENTLY_PASSED_WINDOW = 3 * 60 * 60 * 1000;
 
+/**
+ * The reminder as the widget shows it, or undefined if the widget should not show it at all.
+ */
+function toWidgetReminder(
+  reminder: WidgetReminder
+): WidgetReminder | undefined {
+  const triggerDate =
+    reminder.snoozeUntil && reminder.snoozeUntil > Date.now()
+      ? reminder.snoozeUntil
+      : reminder.mode === "repeat"
+        ? getUpcomingReminderTime(reminder)
+        : reminder.date;
+
+  const recentlyPassed =
+    reminder.mode === "once" &&
+    !reminder.disabled &&
+    triggerDate > Date.now() - RECENTLY_PASSED_WINDOW;
+
+  if (!isReminderActive(reminder) && !recentlyPassed) return;
+
+  // Labels are formatted natively from the trigger time, in the formats set
+  // by setReminderFormats.
+  reminder.triggerDate = triggerDate;
+  return reminder;
+}
+
 async function updateRemindersForWidget() {
   if (Platform.OS === "ios") return;
-  const reminders: ReminderWithFormattedTime[] = await db.reminders?.all.items(
+  const reminders: WidgetReminder[] = await db.reminders?.all.items(
     undefined,
     {
       sortBy: "dueDate",
@@ -284,33 +306,62 @@ async function updateRemindersForWidget() {
   );
   const widgetReminders = [];
   if (!reminders) return;
+  NotesnookModule.setReminderFormats(
+    db.settings.getDateFormat(),
+    db.settings.getTimeFormat()
+  );
+  NotesnookModule.setReminderSnoozeTime(
+    parseInt(SettingsService.get().defaultSnoozeTime || "5")
+  );
   for (const reminder of reminders) {
-    const triggerDate =
-      reminder.snoozeUntil && reminder.snoozeUntil > Date.now()
-        ? reminder.snoozeUntil
-        : reminder.mode === "repeat"
-          ? getUpcomingReminderTime(reminder)
-          : reminder.date;
-
-    const recentlyPassed =
-      reminder.mode === "once" &&
-      !reminder.disabled &&
-      triggerDate > Date.now() - RECENTLY_PASSED_WINDOW;
-
-    if (!isReminderActive(reminder) && !recentlyPassed) continue;
-
-    reminder.triggerDate = triggerDate;
-    reminder.formattedTimeOfDay = getFormattedDate(triggerDate, "time");
-    reminder.formattedDateTime = getFormattedDate(triggerDate, "date-time");
-    reminder.formattedTime = getFormattedReminderTime(reminder);
-    widgetReminders.push(reminder);
+    const widgetReminder = toWidgetReminder(reminder);
+    if (widgetReminder) widgetReminders.push(widgetReminder);
   }
-  NotesnookModule.setString(
-    "appPreview",
-    "remindersList",
-    JSON.stringify(widgetReminders)
+  NotesnookModule.replaceAllReminders(JSON.stringify(widgetReminders));
+}
+
+/**
+ * Applies the snoozes and dismissals made from the reminders widget, which
+ * only changed the widget's own copy of the reminder, and schedules each
+ * reminder's notifications again to match. Run by the widget as soon as a
+ * button is tapped, and again whenever reminders are set up in case that
+ * could not happen.
+ */
+async function applyWidgetReminderActions() {
+  if (Platform.OS === "ios") return;
+  const actions: ({ id: string } & Partial<Reminder>)[] = JSON.parse(
+    (await NotesnookModule.takePendingReminderActions()) || "[]"
   );
-  NotesnookModule.updateReminderWidget();
+  for (const { id, ...changes } of actions) {
+    const reminder = await db.reminders?.reminder(id);
+    if (!reminder) continue;
+    await db.reminders?.add({
+      ...reminder,
+      ...changes
+    });
+    await scheduleNotification(await db.reminders?.reminder(id));
+  }
+  if (actions.length) {
+    useRelationStore.getState().update();
+    useReminderStore.getState().refresh();
+  }
+}
+
+/**
+ * Updates a single reminder in the widget, leaving the rest of the list alone. For changes to
+ * one reminder; anything that goes over all of them sends the whole list once at the end with
+ * updateRemindersForWidget instead.
+ */
+async function updateReminderForWidget(id: string) {
+  if (Platform.OS === "ios") return;
+  const reminder: WidgetReminder | undefined =
+    await db.reminders?.reminder(id);
+  const widgetReminder = reminder ? toWidgetReminder(reminder) : undefined;
+  if (widgetReminder) {
+    NotesnookModule.upsertReminder(JSON.stringify(widgetReminder));
+  } else {
+    NotesnookModule.removeReminder(id);
+  }
 }
 
 async function setupIOSCategories() {
@@ -462,7 +513,6 @@ async function scheduleNotification(
         trigger
       );
     }
-    updateRemindersForWidget();
   } catch (e) {
     /* empty */
   }
@@ -992,6 +1042,7 @@ async function pinQuickNote() {
  */
 
 async function setupReminders(checkNeedsScheduling = false) {
+  await applyWidgetReminderActions();
   const reminders = ((await db.reminders?.all.items()) as Reminder[]) || [];
   let notificationsCancelled = false;
   if (Platform.OS === "android") {
@@ -1156,6 +1207,8 @@ const Notifications = {
   pinNote,
   Events,
   updateRemindersForWidget,
+  updateReminderForWidget,
+  applyWidgetReminderActions,
   restorePinnedNotes
 };
 
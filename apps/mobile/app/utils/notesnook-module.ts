@@ -32,10 +32,34 @@ interface NotesnookModuleInterface {
   setSecureMode: (enabled: boolean) => void;
   saveAndFinish: () => void;
   setString: (storeName: string, key: string, value: string) => void;
+  setStringWithExpiry: (
+    storeName: string,
+    key: string,
+    value: string,
+    expiresInMs: number
+  ) => void;
   getString: (storeName: string, key: string) => Promise<string>;
+  getStringSync: (storeName: string, key: string) => string | null;
   removeString: (key: string) => void;
+  multiGet: (
+    storeName: string,
+    keys: string[]
+  ) => Promise<[key: string, value: string | null][]>;
+  multiSet: (storeName: string, pairs: [key: string, value: string][]) => void;
+  multiRemove: (storeName: string, keys: string[]) => void;
+  transaction: (
+    storeName: string,
+    pairsToSet: [key: string, value: string][],
+    keysToRemove: string[]
+  ) => Promise<boolean>;
+  scan: (
+    storeName: string,
+    prefix: string,
+    cursor: string | null,
+    limit: number
+  ) => Promise<{ keys: string[]; cursor: string | null }>;
   cancelAndFinish: () => void;
-  getWidgetId: () => void;
+  getWidgetId: () => number;
   getIntent: () => {
     "com.streetwriters.notesnook.OpenNoteId"?: string;
     "com.streetwriters.notesnook.OpenReminderId"?: string;
@@ -43,8 +67,32 @@ interface NotesnookModuleInterface {
   };
   getWidgetNotes: () => Promise<string[]>;
   hasWidgetNote: (noteId: string) => Promise<boolean>;
+  setWidgetNote: (widgetId: number, noteId: string, data: string) => void;
   updateWidgetNote: (noteId: string, data: string) => void;
+  updateWidgetNotes: (
+    batch: ({ id: string } & ({ data: string } | { patch: string }))[]
+  ) => void;
   updateReminderWidget: () => void;
+  upsertReminder: (data: string) => void;
+  removeReminder: (id: string) => void;
+  replaceAllReminders: (list: string) => void;
+  setReminderFormats: (dateFormat: string, timeFormat: string) => void;
+  getReminderOccurrences: (
+    reminder: string,
+    after: number,
+    count: number
+  ) => Promise<number[]>;
+  setReminderSnoozeTime: (minutes: number) => void;
+  takePendingReminderActions: () => Promise<string>;
+  getWidgetRenderStats: () => Promise<{
+    requested: number;
+    merged: number;
+    full: number;
+    partial: number;
+    skipped: number;
+    intentsCreated: number;
+    intentsReused: number;
+  }>;
   refreshWidgets: () => void;
   isGestureNavigationEnabled: () => boolean;
   addShortcut: (
@@ -73,15 +121,41 @@ export const NotesnookModule: NotesnookModuleInterface = Platform.select({
     setSecureMode: () => {},
     saveAndFinish: () => {},
     getString: () => {},
+    getStringSync: () => null,
     setString: () => {},
+    setStringWithExpiry: () => {},
     removeString: () => {},
+    multiGet: () => Promise.resolve([]),
+    multiSet: () => {},
+    multiRemove: () => {},
+    transaction: () => Promise.resolve(false),
+    scan: () => Promise.resolve({ keys: [], cursor: null }),
     cancelAndFinish: () => {},
-    getWidgetId: () => {},
+    getWidgetId: () => 0,
     getIntent: () => {},
     getWidgetNotes: () => {},
     hasWidgetNote: () => {},
+    setWidgetNote: () => {},
     updateWidgetNote: () => {},
+    updateWidgetNotes: () => {},
     updateReminderWidget: () => {},
+    upsertReminder: () => {},
+    removeReminder: () => {},
+    replaceAllReminders: () => {},
+    setReminderFormats: () => {},
+    getReminderOccurrences: () => Promise.resolve([]),
+    setReminderSnoozeTime: () => {},
+    takePendingReminderActions: () => Promise.resolve("[]"),
+    getWidgetRenderStats: () =>
+      Promise.resolve({
+        requested: 0,
+        merged: 0,
+        full: 0,
+        partial: 0,
+        skipped: 0,
+        intentsCreated: 0,
+        intentsReused: 0
+      }),
     refreshWidgets: () => {},
     isGestureNavigationEnabled: () => true,
     addShortcut: () => Promise.resolve(false),